@@ -0,0 +1,62 @@
+package com.alan.example.azure.deviceclient;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// GET /{type}/{deviceId}/message without the servlet layer: encoding, in-flight limiter, pool lookup,
+// send and ack metrics against pooled in-memory connections.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ApiRestBenchmark {
+
+    private BenchmarkFixtures fixtures;
+    private ApiRest apiRest;
+    private String[] deviceIds;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        fixtures = new BenchmarkFixtures();
+        deviceIds = fixtures.seedDevices(1000);
+        apiRest = new ApiRest();
+        inject("messageEncoder", fixtures.messageEncoder);
+        inject("telemetrySender", fixtures.telemetrySender);
+        inject("telemetryConflator", fixtures.telemetryConflator);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixtures.close();
+    }
+
+    @Benchmark
+    public String message() throws JsonProcessingException {
+        String deviceId = deviceIds[ThreadLocalRandom.current().nextInt(deviceIds.length)];
+        return apiRest.message("telemetry", deviceId).join();
+    }
+
+    private void inject(String name, Object value) throws ReflectiveOperationException {
+        Field field = ApiRest.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(apiRest, value);
+    }
+}
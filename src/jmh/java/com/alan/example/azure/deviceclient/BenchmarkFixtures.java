@@ -0,0 +1,97 @@
+package com.alan.example.azure.deviceclient;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+// Wires the send path by hand, without Spring or a hub: the device pool is seeded with in-memory
+// connections that acknowledge every message on the sending thread.
+class BenchmarkFixtures implements AutoCloseable {
+
+    final ExecutorService deviceExecutor = Executors.newFixedThreadPool(4);
+    final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    final MessageEncoder messageEncoder;
+    final DeviceProvisioningService deviceProvisioningService;
+    final TelemetrySender telemetrySender;
+    final TelemetryConflator telemetryConflator;
+
+    BenchmarkFixtures() {
+        this(Collections.emptySet(), MessageEncoder.PayloadFormat.CBOR);
+    }
+
+    BenchmarkFixtures(Set<String> binaryTypes, MessageEncoder.PayloadFormat binaryFormat) {
+        messageEncoder = new MessageEncoder(new ObjectMapper(), binaryTypes, binaryFormat,
+                MessageEncoder.Compression.NONE, DataSize.ofKilobytes(1), 1, DataSize.ofMegabytes(1));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ConnectionManager connectionManager = new ConnectionManager(registry, Duration.ofSeconds(1),
+                Duration.ofSeconds(60), Duration.ofMinutes(15), 50, Duration.ofSeconds(5), Duration.ofHours(1), 0.25);
+        deviceProvisioningService = new DeviceProvisioningService(1_000_000, Duration.ofHours(1), deviceExecutor,
+                new ProvisioningResultStore("unused", false), new SeededOnlyTransport(), connectionManager);
+        InFlightLimiter inFlightLimiter = new InFlightLimiter(100_000, 1_000, InFlightLimiter.Policy.REJECT,
+                Duration.ZERO, 0);
+        TelemetryMetrics telemetryMetrics = new TelemetryMetrics(registry, inFlightLimiter,
+                deviceProvisioningService, scheduler, 100, Long.MAX_VALUE, Duration.ofHours(1));
+        TelemetryOutbox telemetryOutbox = new TelemetryOutbox(deviceProvisioningService, registry, scheduler, false,
+                "unused", 1, DataSize.ofMegabytes(1), 1, 1, 1, Duration.ofSeconds(1), Duration.ofSeconds(1),
+                Duration.ofSeconds(1));
+        telemetrySender = new TelemetrySender(deviceProvisioningService, inFlightLimiter, telemetryMetrics, telemetryOutbox);
+        telemetryConflator = new TelemetryConflator(telemetrySender, messageEncoder, registry, scheduler,
+                Collections.emptySet(), Duration.ofSeconds(1));
+    }
+
+    String[] seedDevices(int count) {
+        String[] deviceIds = new String[count];
+        for (int i = 0; i < count; i++) {
+            deviceIds[i] = "bench-" + i;
+            deviceProvisioningService.deviceClientPool.put(deviceIds[i],
+                    CompletableFuture.completedFuture(new InMemoryDeviceConnection()));
+        }
+        return deviceIds;
+    }
+
+    @Override
+    public void close() {
+        deviceExecutor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    // every benchmarked device is seeded, reaching the transport means a benchmark asked for an unknown one
+    static class SeededOnlyTransport implements DeviceTransport {
+        @Override
+        public CompletableFuture<ProvisioningResultStore.Assignment> register(String registrationId) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Not seeded: " + registrationId));
+        }
+
+        @Override
+        public CompletableFuture<DeviceConnection> connect(String registrationId, ProvisioningResultStore.Assignment assignment) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Not seeded: " + registrationId));
+        }
+    }
+
+    static class InMemoryDeviceConnection implements DeviceConnection {
+        @Override
+        public void sendEventAsync(Message message, IotHubEventCallback callback, Object callbackContext) {
+            callback.execute(IotHubStatusCode.OK_EMPTY, callbackContext);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.alan.example.azure.deviceclient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Pool lookups from many request threads. With devices=1 every thread hits the same key.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class DevicePoolBenchmark {
+
+    @Param({"1", "1000", "100000"})
+    int devices;
+
+    private BenchmarkFixtures fixtures;
+    private String[] deviceIds;
+
+    @Setup
+    public void setUp() {
+        fixtures = new BenchmarkFixtures();
+        deviceIds = fixtures.seedDevices(devices);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixtures.close();
+    }
+
+    @Benchmark
+    public DeviceConnection lookup() {
+        String deviceId = deviceIds[ThreadLocalRandom.current().nextInt(deviceIds.length)];
+        return fixtures.deviceProvisioningService.getDeviceConnectionAsync(deviceId).join();
+    }
+}
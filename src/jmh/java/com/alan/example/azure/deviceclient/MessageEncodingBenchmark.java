@@ -0,0 +1,78 @@
+package com.alan.example.azure.deviceclient;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.microsoft.azure.sdk.iot.device.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// Building, serialising and wrapping one reading, the per-message work of every send.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageEncodingBenchmark {
+
+    @Param({"JSON", "CBOR", "SMILE"})
+    MessageEncoder.PayloadFormat format;
+
+    private BenchmarkFixtures fixtures;
+    private MessageEncoder messageEncoder;
+    private MyMessage message;
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws JsonProcessingException {
+        // the binary type is encoded in the measured format, so toDeviceMessage runs as labeled
+        fixtures = new BenchmarkFixtures(Collections.singleton("binary"), format);
+        messageEncoder = fixtures.messageEncoder;
+        message = buildMessage();
+        // toDeviceMessage picks the format from the type
+        message.setType(format == MessageEncoder.PayloadFormat.JSON ? "telemetry" : "binary");
+        body = messageEncoder.encode(message, format);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixtures.close();
+    }
+
+    @Benchmark
+    public MyMessage buildMessage() {
+        return MyMessage.builder()
+                .data("DPS")
+                .id(messageEncoder.nextId())
+                .deviceId("bench-0")
+                .type("telemetry")
+                .ts(System.currentTimeMillis()).build();
+    }
+
+    @Benchmark
+    public byte[] encode() throws JsonProcessingException {
+        return messageEncoder.encode(message, format);
+    }
+
+    @Benchmark
+    public Message newMessage() {
+        return new Message(body);
+    }
+
+    @Benchmark
+    public Message toDeviceMessage() throws JsonProcessingException {
+        return messageEncoder.toDeviceMessage(message);
+    }
+}
@@ -1,44 +1,84 @@
 package com.alan.example.azure.deviceclient;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
-import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
 import com.microsoft.azure.sdk.iot.device.Message;
 import lombok.Builder;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @Slf4j
 public class ApiRest {
 
-    private final AtomicLong idGen = new AtomicLong();
     @Autowired
-    private ObjectMapper mapper;
+    private MessageEncoder messageEncoder;
     @Autowired
-    private DeviceProvisioningService deviceProvisioningService;
+    private TelemetrySender telemetrySender;
+    @Autowired
+    private TelemetryBatcher telemetryBatcher;
+    @Autowired
+    private TelemetryConflator telemetryConflator;
     @Autowired
     private ServiceCommandClient serviceCommandClient;
+    @Autowired
+    private WarmUpService warmUpService;
+    @Autowired
+    private FleetSimulator fleetSimulator;
 
     @GetMapping("/{type}/{deviceId}/message")
-    public String message(@PathVariable("type") String type,
-                          @PathVariable("deviceId") String deviceId) throws JsonProcessingException {
-        Message message = new Message(mapper.writeValueAsBytes(MyMessage.builder()
+    public CompletableFuture<String> message(@PathVariable("type") String type,
+                                             @PathVariable("deviceId") String deviceId) throws JsonProcessingException {
+        MyMessage reading = MyMessage.builder()
                 .data("DPS")
-                .id(String.valueOf(idGen.getAndIncrement()))
+                .id(messageEncoder.nextId())
                 .deviceId(deviceId)
                 .type(type)
-                .ts(System.currentTimeMillis()).build()));
-        message.setContentTypeFinal("application/json");
-        deviceProvisioningService.getDeviceClient(deviceId)
-                .sendEventAsync(message, new EventCallback(), "context");
+                .ts(System.currentTimeMillis()).build();
+        if (telemetryConflator.conflates(type)) {
+            telemetryConflator.add(deviceId, reading);
+            return CompletableFuture.completedFuture("OK");
+        }
+        Message message = messageEncoder.toDeviceMessage(reading);
+        // the request thread is released here, a new device is provisioned on the device executor
+        return telemetrySender.send(deviceId, type, message).thenApply(sent -> "OK");
+    }
+
+    @PostMapping("/{type}/{deviceId}/messages")
+    public String messages(@PathVariable("type") String type,
+                           @PathVariable("deviceId") String deviceId,
+                           @RequestBody List<String> readings) throws JsonProcessingException {
+        long ts = System.currentTimeMillis();
+        if (telemetryConflator.conflates(type)) {
+            for (String data : readings) {
+                telemetryConflator.add(deviceId, MyMessage.builder()
+                        .data(data)
+                        .id(messageEncoder.nextId())
+                        .deviceId(deviceId)
+                        .type(type)
+                        .ts(ts).build());
+            }
+            return "OK";
+        }
+        telemetrySender.checkCapacity(deviceId, type);
+        for (String data : readings) {
+            telemetryBatcher.add(deviceId, MyMessage.builder()
+                    .data(data)
+                    .id(messageEncoder.nextId())
+                    .deviceId(deviceId)
+                    .type(type)
+                    .ts(ts).build());
+        }
         return "OK";
     }
 
@@ -49,13 +89,52 @@ public class ApiRest {
         return "OK";
     }
 
-    protected static class EventCallback implements IotHubEventCallback {
-        public void execute(IotHubStatusCode status, Object context) {
-            log.info("IoT Hub responded to message {}  with status {}", context.toString(), status.name());
-            if (status == IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE) {
-                log.error("Received context  {}", context);
-            }
+    @PostMapping("/{type}/c2d")
+    public FanOutJob.FanOutReport cloudToDevices(@PathVariable("type") String type,
+                                                 @RequestBody(required = false) List<String> deviceIds) {
+        return serviceCommandClient.fanOut(type, deviceIds).report();
+    }
+
+    @GetMapping("/c2d/{jobId}")
+    public ResponseEntity<FanOutJob.FanOutReport> cloudToDevicesReport(@PathVariable("jobId") String jobId) {
+        return ResponseEntity.of(serviceCommandClient.fanOutJob(jobId).map(FanOutJob::report));
+    }
+
+    @PostMapping("/warmup")
+    public WarmUpService.WarmUpReport warmUp(@RequestBody List<String> deviceIds) {
+        return warmUpService.warmUp(deviceIds);
+    }
+
+    @GetMapping("/warmup")
+    public WarmUpService.WarmUpReport warmUpReport() {
+        return warmUpService.report();
+    }
+
+    // settings missing from the body fall back to app.simulator.*
+    @PostMapping("/simulator/start")
+    public FleetSimulator.SimulationReport startSimulation(@RequestBody(required = false) FleetSimulator.SimulationSettings settings) {
+        FleetSimulator.SimulationSettings defaults = fleetSimulator.defaults();
+        if (settings == null) {
+            return fleetSimulator.start(defaults);
         }
+        return fleetSimulator.start(defaults.toBuilder()
+                .deviceCount(settings.getDeviceCount() > 0 ? settings.getDeviceCount() : defaults.getDeviceCount())
+                .devicePrefix(settings.getDevicePrefix() != null ? settings.getDevicePrefix() : defaults.getDevicePrefix())
+                .ratePerDevice(settings.getRatePerDevice() > 0 ? settings.getRatePerDevice() : defaults.getRatePerDevice())
+                .payloadSize(settings.getPayloadSize() > 0 ? settings.getPayloadSize() : defaults.getPayloadSize())
+                .typeMix(settings.getTypeMix() != null ? settings.getTypeMix() : defaults.getTypeMix())
+                .durationSeconds(settings.getDurationSeconds() > 0 ? settings.getDurationSeconds() : defaults.getDurationSeconds())
+                .build());
+    }
+
+    @PostMapping("/simulator/stop")
+    public ResponseEntity<FleetSimulator.SimulationReport> stopSimulation() {
+        return ResponseEntity.of(Optional.ofNullable(fleetSimulator.stop()));
+    }
+
+    @GetMapping("/simulator")
+    public ResponseEntity<FleetSimulator.SimulationReport> simulationReport() {
+        return ResponseEntity.of(Optional.ofNullable(fleetSimulator.report()));
     }
 }
 
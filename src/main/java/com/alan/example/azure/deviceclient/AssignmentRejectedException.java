@@ -0,0 +1,10 @@
+package com.alan.example.azure.deviceclient;
+
+// The hub a device was assigned to does not accept it anymore (unauthorized or unknown device), the only
+// connect failure after which a stored DPS assignment is dropped and the device provisioned again.
+public class AssignmentRejectedException extends RuntimeException {
+
+    public AssignmentRejectedException(String deviceId, String iotHubUri, Throwable cause) {
+        super("Hub " + iotHubUri + " rejected device " + deviceId, cause);
+    }
+}
@@ -0,0 +1,62 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.device.DeviceClient;
+import com.microsoft.azure.sdk.iot.device.IotHubConnectionStatusChangeReason;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubConnectionStatus;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+
+// DeviceClient opened on its own MQTT connection or registered on a shared AMQPS connection.
+@Slf4j
+public class AzureDeviceConnection implements DeviceConnection {
+
+    private final String deviceId;
+    private final DeviceClient deviceClient;
+    // null when the client owns its connection
+    private final MultiplexedConnections multiplexedConnections;
+    private final ConnectionManager connectionManager;
+    private volatile IotHubConnectionStatus status = IotHubConnectionStatus.CONNECTED;
+
+    // built before the client is opened so no status change is missed
+    AzureDeviceConnection(String deviceId, DeviceClient deviceClient, MultiplexedConnections multiplexedConnections,
+                          ConnectionManager connectionManager) {
+        this.deviceId = deviceId;
+        this.deviceClient = deviceClient;
+        this.multiplexedConnections = multiplexedConnections;
+        this.connectionManager = connectionManager;
+        deviceClient.registerConnectionStatusChangeCallback(this::onStatusChange, null);
+    }
+
+    @Override
+    public void sendEventAsync(Message message, IotHubEventCallback callback, Object callbackContext) {
+        deviceClient.sendEventAsync(message, callback, callbackContext);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return status == IotHubConnectionStatus.CONNECTED;
+    }
+
+    @Override
+    public void close() {
+        if (multiplexedConnections != null) {
+            multiplexedConnections.unregister(deviceId, deviceClient);
+            return;
+        }
+        try {
+            deviceClient.closeNow();
+        } catch (IOException e) {
+            log.warn("Error closing device client {}", deviceId, e);
+        }
+    }
+
+    private void onStatusChange(IotHubConnectionStatus status, IotHubConnectionStatusChangeReason reason,
+                                Throwable throwable, Object context) {
+        this.status = status;
+        log.info("Device {} is {} ({})", deviceId, status, reason);
+        connectionManager.statusChanged(deviceId, this, status, reason);
+    }
+}
@@ -0,0 +1,219 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.device.*;
+import com.microsoft.azure.sdk.iot.device.exceptions.HubOrDeviceIdNotFoundException;
+import com.microsoft.azure.sdk.iot.device.exceptions.UnauthorizedException;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.exceptions.AmqpNotFoundException;
+import com.microsoft.azure.sdk.iot.device.transport.amqps.exceptions.AmqpUnauthorizedAccessException;
+import com.microsoft.azure.sdk.iot.device.transport.mqtt.exceptions.MqttBadUsernameOrPasswordException;
+import com.microsoft.azure.sdk.iot.device.transport.mqtt.exceptions.MqttUnauthorizedException;
+import com.microsoft.azure.sdk.iot.provisioning.device.*;
+import com.microsoft.azure.sdk.iot.provisioning.device.internal.exceptions.ProvisioningDeviceClientException;
+import com.microsoft.azure.sdk.iot.provisioning.security.SecurityProviderSymmetricKey;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// DPS registration with a symmetric key derived per device, then one MQTT connection per device or a
+// shared AMQPS connection when multiplexing is enabled. At most max-concurrent-connects device clients
+// open at once, a fixed device executor used to cap that by itself but virtual threads do not.
+@Component
+@Profile("!emulator")
+@Slf4j
+public class AzureDeviceTransport implements DeviceTransport {
+
+    private final String scopeId;
+    private final String globalEndpoint;
+    private final String symmetricKey;
+    private final Duration registrationTimeout;
+    private final ExecutorService deviceExecutor;
+    private final MultiplexedConnections multiplexedConnections;
+    private final C2dDispatcher c2dDispatcher;
+    private final ConnectionManager connectionManager;
+    private final Semaphore connectPermits;
+
+    public AzureDeviceTransport(@Value("${app.scope-id}")
+                                        String scopeId,
+                                @Value("${app.global-endpoint}")
+                                        String globalEndpoint,
+                                @Value("${app.symmetric-key}")
+                                        String symmetricKey,
+                                @Value("${app.provisioning.timeout:30s}")
+                                        Duration registrationTimeout,
+                                @Qualifier("deviceExecutor")
+                                        ExecutorService deviceExecutor,
+                                MultiplexedConnections multiplexedConnections,
+                                C2dDispatcher c2dDispatcher,
+                                ConnectionManager connectionManager,
+                                @Value("${app.provisioning.max-concurrent-connects:16}")
+                                        int maxConcurrentConnects) {
+        this.scopeId = scopeId;
+        this.globalEndpoint = globalEndpoint;
+        this.symmetricKey = symmetricKey;
+        this.registrationTimeout = registrationTimeout;
+        this.deviceExecutor = deviceExecutor;
+        this.multiplexedConnections = multiplexedConnections;
+        this.c2dDispatcher = c2dDispatcher;
+        this.connectionManager = connectionManager;
+        this.connectPermits = new Semaphore(maxConcurrentConnects);
+    }
+
+    @Override
+    public CompletableFuture<ProvisioningResultStore.Assignment> register(String registrationId) {
+        log.info("Registering new device {}", registrationId);
+        SecurityProviderSymmetricKey securityClientSymmetricKey;
+        ProvisioningDeviceClient provisioningDeviceClient;
+        try {
+            securityClientSymmetricKey = securityProvider(registrationId);
+            provisioningDeviceClient = ProvisioningDeviceClient.create(globalEndpoint, scopeId,
+                    ProvisioningDeviceClientTransportProtocol.HTTPS, securityClientSymmetricKey);
+        } catch (InvalidKeyException | NoSuchAlgorithmException | ProvisioningDeviceClientException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<ProvisioningDeviceClientRegistrationResult> registration = new CompletableFuture<>();
+        try {
+            provisioningDeviceClient.registerDevice(new ProvisioningDeviceClientRegistrationCallbackImpl(), registration);
+        } catch (ProvisioningDeviceClientException e) {
+            registration.completeExceptionally(e);
+        }
+        // closing from the DPS callback thread would stop the executor that is running it
+        return registration
+                .orTimeout(registrationTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenCompleteAsync((result, e) -> provisioningDeviceClient.closeNow(), deviceExecutor)
+                .thenApply(result -> new ProvisioningResultStore.Assignment(result.getIothubUri(), result.getDeviceId()));
+    }
+
+    @Override
+    public CompletableFuture<DeviceConnection> connect(String registrationId, ProvisioningResultStore.Assignment assignment) {
+        long delay = connectionManager.connectDelayMillis(registrationId);
+        if (delay == 0) {
+            return connectNow(registrationId, assignment);
+        }
+        log.info("Reconnecting evicted device {} in {} ms", registrationId, delay);
+        return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, deviceExecutor))
+                .thenCompose(v -> connectNow(registrationId, assignment));
+    }
+
+    private CompletableFuture<DeviceConnection> connectNow(String registrationId, ProvisioningResultStore.Assignment assignment) {
+        SecurityProviderSymmetricKey securityClientSymmetricKey;
+        try {
+            securityClientSymmetricKey = securityProvider(registrationId);
+        } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (!multiplexedConnections.isEnabled()) {
+            return CompletableFuture.supplyAsync(() ->
+                    openDeviceClient(registrationId, assignment, securityClientSymmetricKey), deviceExecutor);
+        }
+        // multiplexed clients are opened by their shared AMQPS connection, not one by one
+        DeviceClient deviceClient;
+        try {
+            deviceClient = DeviceClient.createFromSecurityProvider(assignment.getIotHubUri(), assignment.getDeviceId(),
+                    securityClientSymmetricKey, IotHubClientProtocol.AMQPS);
+        } catch (IOException | URISyntaxException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        deviceClient.setMessageCallback(c2dDispatcher.callbackFor(registrationId), null);
+        connectionManager.configure(registrationId, deviceClient);
+        DeviceConnection deviceConnection = new AzureDeviceConnection(registrationId, deviceClient, multiplexedConnections,
+                connectionManager);
+        return multiplexedConnections.register(assignment.getIotHubUri(), registrationId, assignment.getDeviceId(), deviceClient)
+                .thenApply(registered -> deviceConnection);
+    }
+
+    private SecurityProviderSymmetricKey securityProvider(String registrationId) throws InvalidKeyException, NoSuchAlgorithmException {
+        byte[] derivedSymmetricKey =
+                SecurityProviderSymmetricKey
+                        .ComputeDerivedSymmetricKey(
+                                symmetricKey.getBytes(StandardCharsets.UTF_8),
+                                registrationId);
+        return new SecurityProviderSymmetricKey(derivedSymmetricKey, registrationId);
+    }
+
+    private DeviceConnection openDeviceClient(String deviceId,
+                                              ProvisioningResultStore.Assignment assignment,
+                                              SecurityProviderSymmetricKey securityClientSymmetricKey) {
+        try {
+            connectPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+        DeviceClient deviceClient = null;
+        try {
+            deviceClient = DeviceClient.createFromSecurityProvider(assignment.getIotHubUri(), assignment.getDeviceId(),
+                    securityClientSymmetricKey, IotHubClientProtocol.MQTT);
+            deviceClient.setMessageCallback(c2dDispatcher.callbackFor(deviceId), null);
+            connectionManager.configure(deviceId, deviceClient);
+            DeviceConnection deviceConnection = new AzureDeviceConnection(deviceId, deviceClient, null, connectionManager);
+            deviceClient.open();
+            return deviceConnection;
+        } catch (IOException | URISyntaxException e) {
+            log.error("We can't connect the deviceId {} to {}", deviceId, assignment.getIotHubUri(), e);
+            if (deviceClient != null) {
+                try {
+                    deviceClient.closeNow();
+                } catch (IOException closeException) {
+                    log.warn("Error closing device client {}", deviceId, closeException);
+                }
+            }
+            if (rejectsAssignment(e)) {
+                throw new AssignmentRejectedException(deviceId, assignment.getIotHubUri(), e);
+            }
+            throw new CompletionException(e);
+        } finally {
+            connectPermits.release();
+        }
+    }
+
+    // open() wraps the transport exception, only these mean the hub no longer knows or accepts the device.
+    // Outages, timeouts and throttling keep the stored assignment.
+    static boolean rejectsAssignment(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof UnauthorizedException
+                    || cause instanceof HubOrDeviceIdNotFoundException
+                    || cause instanceof MqttUnauthorizedException
+                    || cause instanceof MqttBadUsernameOrPasswordException
+                    || cause instanceof AmqpUnauthorizedAccessException
+                    || cause instanceof AmqpNotFoundException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static class ProvisioningDeviceClientRegistrationCallbackImpl implements ProvisioningDeviceClientRegistrationCallback {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run(ProvisioningDeviceClientRegistrationResult provisioningDeviceClientRegistrationResult, Exception exception, Object context) {
+            if (!(context instanceof CompletableFuture)) {
+                log.error("Received unknown context {}", context);
+                return;
+            }
+            CompletableFuture<ProvisioningDeviceClientRegistrationResult> registration =
+                    (CompletableFuture<ProvisioningDeviceClientRegistrationResult>) context;
+            if (exception != null) {
+                registration.completeExceptionally(exception);
+            } else if (provisioningDeviceClientRegistrationResult.getProvisioningDeviceClientStatus() == ProvisioningDeviceClientStatus.PROVISIONING_DEVICE_STATUS_ASSIGNED) {
+                registration.complete(provisioningDeviceClientRegistrationResult);
+            } else {
+                registration.completeExceptionally(new IllegalStateException("Registration ended with status "
+                        + provisioningDeviceClientRegistrationResult.getProvisioningDeviceClientStatus()));
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.service.FeedbackBatch;
+import com.microsoft.azure.sdk.iot.service.FeedbackReceiver;
+import com.microsoft.azure.sdk.iot.service.FeedbackRecord;
+import com.microsoft.azure.sdk.iot.service.FeedbackStatusCode;
+import com.microsoft.azure.sdk.iot.service.IotHubServiceClientProtocol;
+import com.microsoft.azure.sdk.iot.service.Message;
+import com.microsoft.azure.sdk.iot.service.ServiceClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+@Component
+@Profile("!emulator")
+@Slf4j
+public class AzureServiceTransport implements ServiceTransport {
+
+    private final ServiceClient serviceClient;
+    private FeedbackReceiver feedbackReceiver;
+    private Thread feedbackThread;
+
+    public AzureServiceTransport(@Value("${app.service.connection-string}") String connectionString) {
+        this.serviceClient = new ServiceClient(connectionString, IotHubServiceClientProtocol.AMQPS);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(String deviceId, Message message) {
+        return serviceClient.sendAsync(deviceId, message);
+    }
+
+    @Override
+    public synchronized void receiveFeedback(BiConsumer<String, Boolean> listener) {
+        if (feedbackThread != null) {
+            return;
+        }
+        feedbackReceiver = serviceClient.getFeedbackReceiver();
+        feedbackThread = new Thread(() -> receiveFeedback(feedbackReceiver, listener), "c2d-feedback");
+        feedbackThread.setDaemon(true);
+        feedbackThread.start();
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (feedbackThread != null) {
+            feedbackThread.interrupt();
+        }
+        try {
+            if (feedbackReceiver != null) {
+                feedbackReceiver.close();
+            }
+            serviceClient.close();
+        } catch (IOException e) {
+            log.warn("Error closing the service client", e);
+        }
+    }
+
+    private void receiveFeedback(FeedbackReceiver feedbackReceiver, BiConsumer<String, Boolean> listener) {
+        try {
+            feedbackReceiver.open();
+            while (!Thread.currentThread().isInterrupted()) {
+                FeedbackBatch batch = feedbackReceiver.receive(TimeUnit.SECONDS.toMillis(10));
+                if (batch == null || batch.getRecords() == null) {
+                    continue;
+                }
+                for (FeedbackRecord record : batch.getRecords()) {
+                    listener.accept(record.getOriginalMessageId(), record.getStatusCode() == FeedbackStatusCode.success);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("Feedback receiver stopped", e);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.alan.example.azure.deviceclient;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageCallback;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Routes cloud-to-device messages to the C2dHandler registered for their type. Each device has a lane that
+// runs its messages one after the other on the shared c2d workers, so a device sees its commands in order
+// while different devices are handled in parallel, a lane is dropped when it runs empty. A full lane, or too many queued messages overall, is
+// answered with ABANDON straight away and the hub redelivers later. Compressed bodies are inflated on the
+// worker before the handler sees them. A redelivered message id joins the handler run of the first delivery
+// instead of running the handler again, so a slow handler runs once and its result is what the hub gets.
+@Component
+@Slf4j
+public class C2dDispatcher {
+
+    private static final String UNHANDLED_TYPE = "unhandled";
+
+    private final Map<String, C2dHandler> handlers = new HashMap<>();
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> handlerTimers = new ConcurrentHashMap<>();
+    // device id and message id to the running or finished handler of that message
+    private final Cache<String, CompletableFuture<IotHubMessageResult>> deliveries;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ExecutorService workers;
+    private final MessageEncoder messageEncoder;
+    private final MeterRegistry registry;
+    private final Counter overflowCounter;
+    private final Counter lateCounter;
+    private final int laneSize;
+    private final int maxQueued;
+    private final long ackTimeoutNanos;
+    private final IotHubMessageResult onTimeout;
+
+    public C2dDispatcher(List<C2dHandler> handlers,
+                         MessageEncoder messageEncoder,
+                         MeterRegistry registry,
+                         @Value("${app.c2d.workers:8}")
+                                 int workers,
+                         @Value("${app.c2d.queue-size-per-device:32}")
+                                 int laneSize,
+                         @Value("${app.c2d.max-queued:10000}")
+                                 int maxQueued,
+                         @Value("${app.c2d.ack-timeout:100ms}")
+                                 Duration ackTimeout,
+                         @Value("${app.c2d.on-timeout:ABANDON}")
+                                 IotHubMessageResult onTimeout,
+                         @Value("${app.c2d.redelivery-window:10m}")
+                                 Duration redeliveryWindow) {
+        for (C2dHandler handler : handlers) {
+            C2dHandler previous = this.handlers.put(handler.type(), handler);
+            if (previous != null) {
+                throw new IllegalStateException("Two C2D handlers for type " + handler.type() + ": "
+                        + previous.getClass().getName() + " and " + handler.getClass().getName());
+            }
+        }
+        this.workers = Executors.newFixedThreadPool(workers, new CustomizableThreadFactory("c2d-"));
+        this.messageEncoder = messageEncoder;
+        this.registry = registry;
+        this.laneSize = laneSize;
+        this.maxQueued = maxQueued;
+        this.ackTimeoutNanos = ackTimeout.toNanos();
+        this.onTimeout = onTimeout;
+        // the hub redelivers within its lock timeout times max delivery count, a few minutes by default
+        this.deliveries = Caffeine.newBuilder()
+                .expireAfterWrite(redeliveryWindow)
+                .maximumSize(10L * maxQueued)
+                .build();
+        Gauge.builder("c2d.queue.depth", queued, AtomicInteger::get)
+                .description("C2D messages waiting for or running in a handler")
+                .register(registry);
+        this.overflowCounter = Counter.builder("c2d.overflow")
+                .description("C2D messages abandoned because the device lane or the dispatcher was full")
+                .register(registry);
+        this.lateCounter = Counter.builder("c2d.late")
+                .description("C2D messages answered with on-timeout before their handler finished")
+                .register(registry);
+        log.info("C2D handlers for types {}", this.handlers.keySet());
+    }
+
+    // The SDK only takes the result as the return value of the callback, so the receive thread waits for the
+    // handler up to ack-timeout. With a multiplexed connection that thread receives for every device on it,
+    // so the wait is kept short. A handler still running then is left to finish and the message is answered
+    // with on-timeout: ABANDON has the hub redeliver it, and the redelivery waits for that same run and
+    // answers with its result once it is there.
+    public MessageCallback callbackFor(String deviceId) {
+        return (message, context) -> {
+            CompletableFuture<IotHubMessageResult> result = dispatch(deviceId, message);
+            try {
+                return result.get(ackTimeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                lateCounter.increment();
+                return onTimeout;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return IotHubMessageResult.ABANDON;
+            } catch (ExecutionException e) {
+                return IotHubMessageResult.ABANDON;
+            }
+        };
+    }
+
+    public CompletableFuture<IotHubMessageResult> dispatch(String deviceId, Message message) {
+        String messageId = message.getMessageId();
+        if (messageId == null) {
+            return enqueue(deviceId, message);
+        }
+        String key = deviceId + '/' + messageId;
+        CompletableFuture<IotHubMessageResult> result = deliveries.get(key, id -> enqueue(deviceId, message));
+        // ABANDON, from the handler or a full lane, asks for another try, so the redelivery runs again
+        result.thenAccept(outcome -> {
+            if (outcome == IotHubMessageResult.ABANDON) {
+                deliveries.asMap().remove(key, result);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<IotHubMessageResult> enqueue(String deviceId, Message message) {
+        String type = message.getProperty(MessageEncoder.TYPE_PROPERTY);
+        C2dHandler handler = type == null ? null : handlers.get(type);
+        CompletableFuture<IotHubMessageResult> result = new CompletableFuture<>();
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            overflowCounter.increment();
+            return CompletableFuture.completedFuture(IotHubMessageResult.ABANDON);
+        }
+        if (!offer(deviceId, () -> handle(deviceId, message, handler, result))) {
+            queued.decrementAndGet();
+            overflowCounter.increment();
+            return CompletableFuture.completedFuture(IotHubMessageResult.ABANDON);
+        }
+        return result;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private void handle(String deviceId, Message received, C2dHandler handler,
+                        CompletableFuture<IotHubMessageResult> result) {
+        String tag = handler == null ? UNHANDLED_TYPE : handler.type();
+        long start = System.nanoTime();
+        IotHubMessageResult outcome;
+        try {
+            Message message = messageEncoder.decompressed(received);
+            outcome = handle(deviceId, message, handler);
+        } catch (IOException e) {
+            // a body that does not inflate will not get better on redelivery
+            log.warn("Undecodable C2D message for {}", deviceId, e);
+            outcome = IotHubMessageResult.REJECT;
+        } finally {
+            queued.decrementAndGet();
+        }
+        handlerTimer(tag, outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        result.complete(outcome);
+    }
+
+    private IotHubMessageResult handle(String deviceId, Message message, C2dHandler handler) {
+        if (handler == null) {
+            log.info("Received message from hub for {}: {}", deviceId,
+                    new String(message.getBytes(), Message.DEFAULT_IOTHUB_MESSAGE_CHARSET));
+            return IotHubMessageResult.COMPLETE;
+        }
+        try {
+            return handler.handle(deviceId, message);
+        } catch (Exception e) {
+            log.warn("C2D handler {} failed for {}", handler.type(), deviceId, e);
+            return IotHubMessageResult.ABANDON;
+        }
+    }
+
+    private Timer handlerTimer(String type, IotHubMessageResult outcome) {
+        // types are the registered handlers plus "unhandled", so the tag set stays small
+        return handlerTimers.computeIfAbsent(type + '/' + outcome, key -> Timer.builder("c2d.handler.latency")
+                .description("Time spent in the C2D handler")
+                .tags("type", type, "result", outcome.name())
+                .register(registry));
+    }
+
+    private boolean offer(String deviceId, Runnable task) {
+        while (true) {
+            Lane lane = lanes.computeIfAbsent(deviceId, id -> new Lane());
+            synchronized (lane) {
+                if (lane.retired) {
+                    // ran empty and was dropped after the lookup, the next one finds a new lane
+                    continue;
+                }
+                if (lane.tasks.size() >= laneSize) {
+                    return false;
+                }
+                lane.tasks.addLast(task);
+                if (lane.scheduled) {
+                    return true;
+                }
+                lane.scheduled = true;
+            }
+            workers.execute(() -> runNext(deviceId, lane));
+            return true;
+        }
+    }
+
+    private void runNext(String deviceId, Lane lane) {
+        Runnable task;
+        synchronized (lane) {
+            task = lane.tasks.pollFirst();
+        }
+        task.run();
+        synchronized (lane) {
+            if (lane.tasks.isEmpty()) {
+                lane.scheduled = false;
+                lane.retired = true;
+                lanes.remove(deviceId, lane);
+                return;
+            }
+        }
+        // one message per turn, a busy device goes back in line behind the others
+        workers.execute(() -> runNext(deviceId, lane));
+    }
+
+    private static class Lane {
+        private final Deque<Runnable> tasks = new ArrayDeque<>();
+        // a runNext for this lane is queued or running
+        private boolean scheduled;
+        // no longer mapped, offers go to a new lane
+        private boolean retired;
+    }
+}
@@ -0,0 +1,15 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import com.microsoft.azure.sdk.iot.device.Message;
+
+// Handles the cloud-to-device messages of one type for any device. Beans implementing it are picked up by
+// C2dDispatcher; handle() runs on a c2d worker, never on the SDK receive thread, one message per device at
+// a time. The result is what the hub gets back, an exception counts as ABANDON.
+public interface C2dHandler {
+
+    // matched against the message-type property set by MessageEncoder.toServiceMessage
+    String type();
+
+    IotHubMessageResult handle(String deviceId, Message message) throws Exception;
+}
@@ -0,0 +1,155 @@
+package com.alan.example.azure.deviceclient;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.microsoft.azure.sdk.iot.device.DeviceClient;
+import com.microsoft.azure.sdk.iot.device.IotHubConnectionStatusChangeReason;
+import com.microsoft.azure.sdk.iot.device.exceptions.TransportException;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubConnectionStatus;
+import com.microsoft.azure.sdk.iot.device.transport.RetryDecision;
+import com.microsoft.azure.sdk.iot.device.transport.RetryPolicy;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+// Fleet-wide reconnect behaviour of the device clients. Retries back off exponentially with jitter and every
+// attempt, SDK retry or rebuild of an evicted client, gets a start time from one shared timeline, so after a
+// hub blip at most max-concurrent attempts start per attempt-time instead of the whole fleet at once. SAS
+// token lifetimes are spread per device so renewals do not line up either.
+@Component
+@Slf4j
+public class ConnectionManager {
+
+    private final Set<String> reconnecting = ConcurrentHashMap.newKeySet();
+    // evicted devices, their next connect waits for a slot like a retry. The eviction is what removes the
+    // client from the pool, so a device nobody asks for again is only forgotten by expiry, after give-up-after
+    // it connects like a new one.
+    private final Set<String> evicted;
+    private final AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+    private final RetryPolicy retryPolicy = this::retryDecision;
+    private final Counter evictedCounter;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long giveUpAfterMillis;
+    private final long slotSpacingNanos;
+    private final long sasTokenExpirySeconds;
+    private final double sasTokenSpread;
+    private volatile BiConsumer<String, DeviceConnection> evictor = (deviceId, deviceConnection) -> { };
+
+    public ConnectionManager(MeterRegistry registry,
+                             @Value("${app.connection.retry.base-delay:1s}")
+                                     Duration baseDelay,
+                             @Value("${app.connection.retry.max-delay:60s}")
+                                     Duration maxDelay,
+                             @Value("${app.connection.retry.give-up-after:15m}")
+                                     Duration giveUpAfter,
+                             @Value("${app.connection.reconnect.max-concurrent:50}")
+                                     int maxConcurrent,
+                             @Value("${app.connection.reconnect.attempt-time:5s}")
+                                     Duration attemptTime,
+                             @Value("${app.connection.sas-token.expiry:1h}")
+                                     Duration sasTokenExpiry,
+                             @Value("${app.connection.sas-token.spread:0.25}")
+                                     double sasTokenSpread) {
+        this.baseDelayMillis = baseDelay.toMillis();
+        this.maxDelayMillis = maxDelay.toMillis();
+        this.giveUpAfterMillis = giveUpAfter.toMillis();
+        this.slotSpacingNanos = attemptTime.toNanos() / Math.max(1, maxConcurrent);
+        this.sasTokenExpirySeconds = sasTokenExpiry.getSeconds();
+        this.sasTokenSpread = sasTokenSpread;
+        this.evicted = Collections.newSetFromMap(Caffeine.newBuilder()
+                .expireAfterWrite(giveUpAfter)
+                .<String, Boolean>build()
+                .asMap());
+        Gauge.builder("device.connection.reconnecting", reconnecting, Set::size)
+                .description("Device clients retrying their connection")
+                .register(registry);
+        this.evictedCounter = Counter.builder("device.connection.evicted")
+                .description("Device clients dropped from the pool after the SDK gave up reconnecting")
+                .register(registry);
+    }
+
+    // called once by the pool, the evictor drops the given client if it is still the pooled one
+    public void evictWith(BiConsumer<String, DeviceConnection> evictor) {
+        this.evictor = evictor;
+    }
+
+    // before open, the options only apply to the next connection
+    public void configure(String deviceId, DeviceClient deviceClient) {
+        deviceClient.setRetryPolicy(retryPolicy);
+        deviceClient.setOperationTimeout(giveUpAfterMillis);
+        deviceClient.setOption("SetSASTokenExpiryTime", sasTokenExpirySeconds(deviceId));
+    }
+
+    public RetryPolicy retryPolicy() {
+        return retryPolicy;
+    }
+
+    public void statusChanged(String deviceId, DeviceConnection deviceConnection,
+                              IotHubConnectionStatus status, IotHubConnectionStatusChangeReason reason) {
+        if (status == IotHubConnectionStatus.DISCONNECTED_RETRYING) {
+            reconnecting.add(deviceId);
+            return;
+        }
+        reconnecting.remove(deviceId);
+        // CLIENT_CLOSE is our own close, e.g. the pool removing the client
+        if (status == IotHubConnectionStatus.DISCONNECTED && reason != IotHubConnectionStatusChangeReason.CLIENT_CLOSE) {
+            log.warn("Device {} disconnected for good ({}), dropping its client", deviceId, reason);
+            evicted.add(deviceId);
+            evictedCounter.increment();
+            evictor.accept(deviceId, deviceConnection);
+        }
+    }
+
+    // 0 for a first connect, a slot on the reconnect timeline when the device was evicted
+    public long connectDelayMillis(String deviceId) {
+        if (!evicted.remove(deviceId)) {
+            return 0;
+        }
+        return admit(jitteredBackoff(0));
+    }
+
+    long sasTokenExpirySeconds(String deviceId) {
+        // stable per device, so a restart keeps the spread instead of drawing new lifetimes. The hash is
+        // scrambled first, ids like device-1 and device-2 have neighbouring hashCodes.
+        double fraction = ((deviceId.hashCode() * 0x9E3779B97F4A7C15L) >>> 11) * 0x1.0p-53;
+        return Math.max(60, (long) (sasTokenExpirySeconds * (1 - sasTokenSpread * fraction)));
+    }
+
+    private RetryDecision retryDecision(int currentRetryCount, TransportException lastException) {
+        if (lastException != null && !lastException.isRetryable()) {
+            return new RetryDecision(false, 0);
+        }
+        // the SDK stops on its own once give-up-after (the operation timeout) has passed
+        return new RetryDecision(true, admit(jitteredBackoff(currentRetryCount)));
+    }
+
+    // between half and all of the exponential delay, so devices that failed together drift apart
+    private long jitteredBackoff(int attempt) {
+        long delay = maxDelayMillis;
+        if (attempt < 31) {
+            delay = Math.min(maxDelayMillis, baseDelayMillis << attempt);
+        }
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    // Attempts take start times slotSpacing apart from now on. An attempt whose own delay is already past its
+    // slot keeps the delay, so the timeline only stretches when many devices want to go at once.
+    private long admit(long delayMillis) {
+        long now = System.nanoTime();
+        long slot = nextSlot.getAndAccumulate(now, (previous, at) -> Math.max(previous, at) + slotSpacingNanos);
+        long slotDelayMillis = TimeUnit.NANOSECONDS.toMillis(Math.max(slot, now) - now);
+        return Math.max(delayMillis, slotDelayMillis);
+    }
+}
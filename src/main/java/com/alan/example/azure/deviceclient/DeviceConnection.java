@@ -0,0 +1,17 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.Message;
+
+// A device connected to its hub, as held by the device pool. The send path only depends on this, so the
+// pool can hold stand-ins that are not backed by a DeviceClient.
+public interface DeviceConnection {
+
+    void sendEventAsync(Message message, IotHubEventCallback callback, Object callbackContext);
+
+    // false while the connection is down and the SDK is retrying
+    boolean isConnected();
+
+    // called once when the device leaves the pool
+    void close();
+}
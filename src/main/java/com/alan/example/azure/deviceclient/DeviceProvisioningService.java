@@ -1,146 +1,122 @@
 package com.alan.example.azure.deviceclient;
 
-import com.microsoft.azure.sdk.iot.device.*;
-import com.microsoft.azure.sdk.iot.provisioning.device.*;
-import com.microsoft.azure.sdk.iot.provisioning.device.internal.exceptions.ProvisioningDeviceClientException;
-import com.microsoft.azure.sdk.iot.provisioning.security.SecurityProviderSymmetricKey;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.IOException;
-import java.net.URISyntaxException;
-import java.nio.charset.StandardCharsets;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import javax.annotation.PreDestroy;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
 
 @Service
 @Slf4j
 public class DeviceProvisioningService {
-    private static final int MAX_TIME_TO_WAIT_FOR_REGISTRATION = 10000; // in milliseconds
-    SecurityProviderSymmetricKey securityClientSymmetricKey;
-
-    ProvisioningDeviceClient provisioningDeviceClient;
-    Map<String, DeviceClient> deviceClientPool = new LinkedHashMap<>();
-    private final String scopeId;
-    private final String globalEndpoint;
-    private final String symmetricKey;
-    private final String registrationId;
 
-    public DeviceProvisioningService(@Value("${app.scope-id}")
-                                             String scopeId,
-                                     @Value("${app.global-endpoint}")
-                                             String globalEndpoint,
-                                     @Value("${app.symmetric-key}")
-                                             String symmetricKey,
-                                     @Value("${app.registration-id}")
-                                             String registrationId) {
-        this.scopeId = scopeId;
-        this.globalEndpoint = globalEndpoint;
-        this.symmetricKey = symmetricKey;
-        this.registrationId = registrationId;
+    final AsyncCache<String, DeviceConnection> deviceClientPool;
+    private final ExecutorService deviceExecutor;
+    private final ProvisioningResultStore provisioningResultStore;
+    private final DeviceTransport deviceTransport;
+
+    public DeviceProvisioningService(@Value("${app.pool.max-size:10000}")
+                                             long poolMaxSize,
+                                     @Value("${app.pool.idle-timeout:30m}")
+                                             Duration poolIdleTimeout,
+                                     @Qualifier("deviceExecutor")
+                                             ExecutorService deviceExecutor,
+                                     ProvisioningResultStore provisioningResultStore,
+                                     DeviceTransport deviceTransport,
+                                     ConnectionManager connectionManager) {
+        this.deviceExecutor = deviceExecutor;
+        this.provisioningResultStore = provisioningResultStore;
+        this.deviceTransport = deviceTransport;
+        // get() starts createDeviceClient once per key, concurrent callers for the same device share the future
+        // and a failed future is dropped so the next call provisions again
+        this.deviceClientPool = Caffeine.newBuilder()
+                .maximumSize(poolMaxSize)
+                .expireAfterAccess(poolIdleTimeout)
+                .scheduler(Scheduler.systemScheduler())
+                .executor(deviceExecutor)
+                .removalListener(this::onDeviceClientRemoved)
+                .buildAsync();
+        connectionManager.evictWith(this::evict);
     }
 
-    public DeviceClient getDeviceClient(String deviceId) {
-        return Optional.ofNullable(deviceClientPool.get(deviceId)).orElseGet(() ->createDeviceClient(deviceId));
+    public CompletableFuture<DeviceConnection> getDeviceConnectionAsync(String deviceId) {
+        return deviceClientPool.get(deviceId, (id, executor) -> createDeviceClient(id));
     }
 
-    private DeviceClient createDeviceClient(String deviceId) {
-        DeviceClient deviceClient = null;
-        try {
-
-            log.info("Registering new device {}", deviceId);
-            ProvisioningStatus provisioningStatus = new ProvisioningStatus();
-            byte[] derivedSymmetricKey =
-                    SecurityProviderSymmetricKey
-                            .ComputeDerivedSymmetricKey(
-                                    symmetricKey.getBytes(StandardCharsets.UTF_8),
-                                    deviceId);
-
-            securityClientSymmetricKey = new SecurityProviderSymmetricKey(derivedSymmetricKey, deviceId);
-            provisioningDeviceClient = ProvisioningDeviceClient.create(globalEndpoint, scopeId,
-                    ProvisioningDeviceClientTransportProtocol.HTTPS, securityClientSymmetricKey);
-            provisioningDeviceClient.registerDevice(new ProvisioningDeviceClientRegistrationCallbackImpl(), provisioningStatus);
-            while (provisioningStatus.provisioningDeviceClientRegistrationInfoClient.getProvisioningDeviceClientStatus() != ProvisioningDeviceClientStatus.PROVISIONING_DEVICE_STATUS_ASSIGNED) {
-                if (provisioningStatus.provisioningDeviceClientRegistrationInfoClient.getProvisioningDeviceClientStatus() == ProvisioningDeviceClientStatus.PROVISIONING_DEVICE_STATUS_ERROR ||
-                        provisioningStatus.provisioningDeviceClientRegistrationInfoClient.getProvisioningDeviceClientStatus() == ProvisioningDeviceClientStatus.PROVISIONING_DEVICE_STATUS_DISABLED ||
-                        provisioningStatus.provisioningDeviceClientRegistrationInfoClient.getProvisioningDeviceClientStatus() == ProvisioningDeviceClientStatus.PROVISIONING_DEVICE_STATUS_FAILED) {
-                    provisioningStatus.exception.printStackTrace();
-                    System.out.println("Registration error, bailing out");
-                    break;
-                }
-                System.out.println("Waiting for Provisioning Service to register");
-                Thread.sleep(MAX_TIME_TO_WAIT_FOR_REGISTRATION);
-            }
-
-            if (provisioningStatus.provisioningDeviceClientRegistrationInfoClient.getProvisioningDeviceClientStatus() == ProvisioningDeviceClientStatus.PROVISIONING_DEVICE_STATUS_ASSIGNED) {
-                System.out.println("IotHUb Uri : " + provisioningStatus.provisioningDeviceClientRegistrationInfoClient.getIothubUri());
-                System.out.println("Device ID : " + provisioningStatus.provisioningDeviceClientRegistrationInfoClient.getDeviceId());
+    public List<String> pooledDeviceIds() {
+        return new ArrayList<>(deviceClientPool.asMap().keySet());
+    }
 
-                // connect to iothub
-                String iotHubUri = provisioningStatus.provisioningDeviceClientRegistrationInfoClient.getIothubUri();
-                String receivedDeviceId = provisioningStatus.provisioningDeviceClientRegistrationInfoClient.getDeviceId();
-                log.info("Device registered {}", receivedDeviceId);
-                deviceClient = DeviceClient.createFromSecurityProvider(iotHubUri, deviceId, securityClientSymmetricKey, IotHubClientProtocol.MQTT);
-                deviceClient.setMessageCallback(new AppMessageCallback(), null);
-                deviceClient.open();
-                deviceClientPool.put(deviceId, deviceClient);
-//                Message messageToSendFromDeviceToHub = new Message("Whatever message you would like to send");
-//
-//                System.out.println("Sending message from device to IoT Hub...");
-//                deviceClient.sendEventAsync(messageToSendFromDeviceToHub, new IotHubEventCallbackImpl(), null);
-//                log.info("Waiting to send message");
-//                Thread.sleep(5000);
-//                deviceClient.closeNow();
-            } else {
-                log.error("We can't register the deviceId {}", deviceId);
-            }
+    public long poolSize() {
+        return deviceClientPool.synchronous().estimatedSize();
+    }
 
-        } catch (IOException e) {
-            System.out.println("Device client threw an exception: " + e.getMessage());
-        } catch (URISyntaxException e) {
-            e.printStackTrace();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
-        } catch (ProvisioningDeviceClientException e) {
-            e.printStackTrace();
+    @PreDestroy
+    public void closeAll() {
+        deviceClientPool.synchronous().invalidateAll();
+        deviceClientPool.synchronous().cleanUp();
+    }
 
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            provisioningDeviceClient.closeNow();
+    // only the client that gave up is dropped, a newer one already pooled for the device stays
+    private void evict(String deviceId, DeviceConnection deviceConnection) {
+        CompletableFuture<DeviceConnection> pooled = deviceClientPool.getIfPresent(deviceId);
+        if (pooled != null && pooled.isDone() && !pooled.isCompletedExceptionally()
+                && pooled.join() == deviceConnection) {
+            deviceClientPool.asMap().remove(deviceId, pooled);
         }
-        return deviceClient;
     }
 
-    static class ProvisioningStatus {
-        ProvisioningDeviceClientRegistrationResult provisioningDeviceClientRegistrationInfoClient = new ProvisioningDeviceClientRegistrationResult();
-        Exception exception;
+    private void onDeviceClientRemoved(String deviceId, DeviceConnection deviceConnection, RemovalCause cause) {
+        if (deviceConnection == null) {
+            return;
+        }
+        log.info("Closing device client {} ({})", deviceId, cause);
+        deviceConnection.close();
     }
 
-    static class ProvisioningDeviceClientRegistrationCallbackImpl implements ProvisioningDeviceClientRegistrationCallback {
-        @Override
-        public void run(ProvisioningDeviceClientRegistrationResult provisioningDeviceClientRegistrationResult, Exception exception, Object context) {
-            if (context instanceof ProvisioningStatus) {
-                ProvisioningStatus status = (ProvisioningStatus) context;
-                status.provisioningDeviceClientRegistrationInfoClient = provisioningDeviceClientRegistrationResult;
-                status.exception = exception;
-            } else {
-                System.out.println("Received unknown context");
-            }
+    private CompletableFuture<DeviceConnection> createDeviceClient(String deviceId) {
+        Optional<ProvisioningResultStore.Assignment> known = provisioningResultStore.find(deviceId);
+        if (!known.isPresent()) {
+            return provisionDeviceClient(deviceId);
         }
+        // a known device goes straight to its hub, DPS is only asked again when the hub rejects the device
+        // (e.g. reassigned). Any other failure keeps the assignment, a hub outage must not send the fleet to DPS.
+        return deviceTransport.connect(deviceId, known.get())
+                .handle((deviceConnection, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(deviceConnection);
+                    }
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    if (!(cause instanceof AssignmentRejectedException)) {
+                        return CompletableFuture.<DeviceConnection>failedFuture(cause);
+                    }
+                    log.info("Cached assignment for {} rejected, provisioning again", deviceId);
+                    provisioningResultStore.remove(deviceId);
+                    return provisionDeviceClient(deviceId);
+                })
+                .thenCompose(Function.identity());
     }
 
-    static class AppMessageCallback implements MessageCallback {
-        public IotHubMessageResult execute(Message msg, Object context) {
-            log.info("Received message from hub: {}",
-                    new String(msg.getBytes(), Message.DEFAULT_IOTHUB_MESSAGE_CHARSET));
-            return IotHubMessageResult.COMPLETE;
-        }
+    private CompletableFuture<DeviceConnection> provisionDeviceClient(String deviceId) {
+        return deviceTransport.register(deviceId)
+                .thenComposeAsync(assignment -> {
+                    log.info("Device registered {} on {}", assignment.getDeviceId(), assignment.getIotHubUri());
+                    provisioningResultStore.save(deviceId, assignment.getIotHubUri(), assignment.getDeviceId());
+                    return deviceTransport.connect(deviceId, assignment);
+                }, deviceExecutor);
     }
 }
@@ -0,0 +1,14 @@
+package com.alan.example.azure.deviceclient;
+
+import java.util.concurrent.CompletableFuture;
+
+// How the device pool reaches DPS and the hubs: the Azure SDK by default, the in-process emulator with
+// the emulator profile.
+public interface DeviceTransport {
+
+    // completes with the hub and device id DPS assigned to the registration
+    CompletableFuture<ProvisioningResultStore.Assignment> register(String registrationId);
+
+    // completes once the assigned device is connected and can send
+    CompletableFuture<DeviceConnection> connect(String registrationId, ProvisioningResultStore.Assignment assignment);
+}
@@ -0,0 +1,266 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.service.Message;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+// In-process DPS and IoT Hub for the emulator profile. Registrations, connects, acks and C2D feedback
+// complete on a scheduler after the configured delays; hubs throttle above messages-per-second and
+// connections drop at random and hold their acks until they are back. Nothing leaves the JVM, so a
+// single box shows the throughput ceiling and overload behaviour of the client itself.
+@Component
+@Profile("emulator")
+@Slf4j
+public class EmulatedIotHub implements DeviceTransport, ServiceTransport {
+
+    private static final String HUB_SUFFIX = ".emulator.local";
+
+    private final ConcurrentMap<String, EmulatedConnection> connections = new ConcurrentHashMap<>();
+    private final Hub[] hubs;
+    private final ScheduledExecutorService scheduler;
+    private final C2dDispatcher c2dDispatcher;
+    private final long provisioningDelayNanos;
+    private final long provisioningJitterNanos;
+    private final double provisioningFailureRate;
+    private final long connectDelayNanos;
+    private final long ackLatencyNanos;
+    private final long ackJitterNanos;
+    private final long disconnectMeanIntervalNanos;
+    private final long disconnectDurationNanos;
+    private final long c2dDeliveryLatencyNanos;
+    private volatile BiConsumer<String, Boolean> feedbackListener;
+
+    public EmulatedIotHub(C2dDispatcher c2dDispatcher,
+                          @Value("${app.emulator.hubs:1}")
+                                  int hubCount,
+                          @Value("${app.emulator.threads:4}")
+                                  int threads,
+                          @Value("${app.emulator.provisioning.delay:500ms}")
+                                  Duration provisioningDelay,
+                          @Value("${app.emulator.provisioning.jitter:200ms}")
+                                  Duration provisioningJitter,
+                          @Value("${app.emulator.provisioning.failure-rate:0}")
+                                  double provisioningFailureRate,
+                          @Value("${app.emulator.connect.delay:100ms}")
+                                  Duration connectDelay,
+                          @Value("${app.emulator.ack.latency:20ms}")
+                                  Duration ackLatency,
+                          @Value("${app.emulator.ack.jitter:10ms}")
+                                  Duration ackJitter,
+                          @Value("${app.emulator.throttle.messages-per-second:0}")
+                                  int messagesPerSecond,
+                          @Value("${app.emulator.disconnect.mean-interval:0s}")
+                                  Duration disconnectMeanInterval,
+                          @Value("${app.emulator.disconnect.duration:5s}")
+                                  Duration disconnectDuration,
+                          @Value("${app.emulator.c2d.delivery-latency:50ms}")
+                                  Duration c2dDeliveryLatency) {
+        this.hubs = new Hub[hubCount];
+        for (int i = 0; i < hubCount; i++) {
+            hubs[i] = new Hub("hub-" + i + HUB_SUFFIX, messagesPerSecond);
+        }
+        this.scheduler = Executors.newScheduledThreadPool(threads, new CustomizableThreadFactory("emulator-"));
+        this.c2dDispatcher = c2dDispatcher;
+        this.provisioningDelayNanos = provisioningDelay.toNanos();
+        this.provisioningJitterNanos = provisioningJitter.toNanos();
+        this.provisioningFailureRate = provisioningFailureRate;
+        this.connectDelayNanos = connectDelay.toNanos();
+        this.ackLatencyNanos = ackLatency.toNanos();
+        this.ackJitterNanos = ackJitter.toNanos();
+        this.disconnectMeanIntervalNanos = disconnectMeanInterval.toNanos();
+        this.disconnectDurationNanos = disconnectDuration.toNanos();
+        this.c2dDeliveryLatencyNanos = c2dDeliveryLatency.toNanos();
+        log.info("IoT Hub emulator with {} hubs, ack latency {} ms, {} msg/s per hub", hubCount,
+                ackLatency.toMillis(), messagesPerSecond > 0 ? messagesPerSecond : "unlimited");
+    }
+
+    @Override
+    public CompletableFuture<ProvisioningResultStore.Assignment> register(String registrationId) {
+        CompletableFuture<ProvisioningResultStore.Assignment> registration = new CompletableFuture<>();
+        schedule(() -> {
+            if (ThreadLocalRandom.current().nextDouble() < provisioningFailureRate) {
+                registration.completeExceptionally(new IllegalStateException("Emulated DPS failure for " + registrationId));
+            } else {
+                Hub hub = hubs[Math.floorMod(registrationId.hashCode(), hubs.length)];
+                registration.complete(new ProvisioningResultStore.Assignment(hub.uri, registrationId));
+            }
+        }, provisioningDelayNanos, provisioningJitterNanos);
+        return registration;
+    }
+
+    @Override
+    public CompletableFuture<DeviceConnection> connect(String registrationId, ProvisioningResultStore.Assignment assignment) {
+        Hub hub = hub(assignment.getIotHubUri());
+        if (hub == null) {
+            // e.g. an assignment stored by a run against the real hubs, the pool provisions again
+            return CompletableFuture.failedFuture(new AssignmentRejectedException(registrationId, assignment.getIotHubUri(),
+                    new IllegalStateException("Unknown hub " + assignment.getIotHubUri())));
+        }
+        CompletableFuture<DeviceConnection> connected = new CompletableFuture<>();
+        schedule(() -> {
+            EmulatedConnection connection = new EmulatedConnection(assignment.getDeviceId(), hub);
+            connections.put(connection.deviceId, connection);
+            scheduleDisconnect(connection);
+            connected.complete(connection);
+        }, connectDelayNanos, 0);
+        return connected;
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(String deviceId, Message message) {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        schedule(() -> {
+            sent.complete(null);
+            schedule(() -> deliver(deviceId, message), c2dDeliveryLatencyNanos, 0);
+        }, ackLatencyNanos, ackJitterNanos);
+        return sent;
+    }
+
+    @Override
+    public void receiveFeedback(BiConsumer<String, Boolean> listener) {
+        if (feedbackListener == null) {
+            feedbackListener = listener;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    // the message goes through the same dispatcher as on a real device, and only a COMPLETE from its
+    // handler counts as delivered in the feedback
+    private void deliver(String deviceId, Message message) {
+        EmulatedConnection connection = connections.get(deviceId);
+        BiConsumer<String, Boolean> listener = feedbackListener;
+        String messageId = message.getMessageId();
+        if (connection == null || !connection.isConnected()) {
+            if (listener != null && messageId != null) {
+                listener.accept(messageId, false);
+            }
+            return;
+        }
+        com.microsoft.azure.sdk.iot.device.Message received = new com.microsoft.azure.sdk.iot.device.Message(message.getBytes());
+        received.setMessageId(messageId);
+        Map<String, String> properties = message.getProperties();
+        if (properties != null) {
+            properties.forEach(received::setProperty);
+        }
+        c2dDispatcher.dispatch(deviceId, received).thenAccept(result -> {
+            if (listener != null && messageId != null) {
+                listener.accept(messageId, result == IotHubMessageResult.COMPLETE);
+            }
+        });
+    }
+
+    private Hub hub(String uri) {
+        for (Hub hub : hubs) {
+            if (hub.uri.equals(uri)) {
+                return hub;
+            }
+        }
+        return null;
+    }
+
+    private void schedule(Runnable task, long delayNanos, long jitterNanos) {
+        long delay = jitterNanos > 0 ? delayNanos + ThreadLocalRandom.current().nextLong(jitterNanos) : delayNanos;
+        scheduler.schedule(task, delay, TimeUnit.NANOSECONDS);
+    }
+
+    // exponentially distributed time between drops, like independent network failures
+    private void scheduleDisconnect(EmulatedConnection connection) {
+        if (disconnectMeanIntervalNanos <= 0) {
+            return;
+        }
+        long next = (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * disconnectMeanIntervalNanos);
+        connection.disconnectTask = scheduler.schedule(() -> {
+            if (connections.get(connection.deviceId) != connection) {
+                return;
+            }
+            connection.reconnectAt = System.nanoTime() + disconnectDurationNanos;
+            log.debug("Emulated disconnect of {} for {} ms", connection.deviceId,
+                    TimeUnit.NANOSECONDS.toMillis(disconnectDurationNanos));
+            scheduleDisconnect(connection);
+        }, next, TimeUnit.NANOSECONDS);
+    }
+
+    private class EmulatedConnection implements DeviceConnection {
+        private final String deviceId;
+        private final Hub hub;
+        private volatile long reconnectAt;
+        private volatile ScheduledFuture<?> disconnectTask;
+
+        EmulatedConnection(String deviceId, Hub hub) {
+            this.deviceId = deviceId;
+            this.hub = hub;
+            this.reconnectAt = System.nanoTime();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return reconnectAt - System.nanoTime() <= 0;
+        }
+
+        @Override
+        public void sendEventAsync(com.microsoft.azure.sdk.iot.device.Message message, IotHubEventCallback callback, Object callbackContext) {
+            // the SDK keeps retrying while the connection is down, so the ack waits for the reconnect
+            long down = Math.max(0, reconnectAt - System.nanoTime());
+            IotHubStatusCode status = hub.tryAcquire() ? IotHubStatusCode.OK_EMPTY : IotHubStatusCode.THROTTLED;
+            schedule(() -> callback.execute(status, callbackContext), down + ackLatencyNanos, ackJitterNanos);
+        }
+
+        @Override
+        public void close() {
+            connections.remove(deviceId, this);
+            ScheduledFuture<?> task = disconnectTask;
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    // fixed one second windows, a burst at a window edge can pass twice the rate like on the real quota
+    private static class Hub {
+        private final String uri;
+        private final int messagesPerSecond;
+        private long windowStart = System.nanoTime();
+        private int used;
+
+        Hub(String uri, int messagesPerSecond) {
+            this.uri = uri;
+            this.messagesPerSecond = messagesPerSecond;
+        }
+
+        synchronized boolean tryAcquire() {
+            if (messagesPerSecond <= 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+                windowStart = now;
+                used = 0;
+            }
+            return ++used <= messagesPerSecond;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.alan.example.azure.deviceclient;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+@Configuration
+@Slf4j
+public class ExecutorConfiguration {
+
+    // Opens device clients and runs provisioning continuations, never a request thread.
+    // With virtual threads every blocking open() gets its own cheap thread instead of a pool slot, the
+    // transport limits how many open at once.
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService deviceExecutor(@Value("${app.provisioning.threads:16}") int threads,
+                                          @Value("${app.execution.virtual-threads:false}") boolean virtualThreads) {
+        if (virtualThreads) {
+            Optional<ExecutorService> executor = virtualThreadExecutor("device-");
+            if (executor.isPresent()) {
+                return executor.get();
+            }
+        }
+        return Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("device-"));
+    }
+
+    // Linger and periodic flushes, tasks must stay short and non-blocking
+    @Bean(destroyMethod = "shutdown")
+    public ScheduledExecutorService telemetryScheduler(@Value("${app.batch.scheduler-threads:2}") int threads) {
+        return Executors.newScheduledThreadPool(threads, new CustomizableThreadFactory("telemetry-"));
+    }
+
+    // Tomcat runs each request on its own virtual thread, server.tomcat.threads.max no longer caps concurrency
+    // but server.tomcat.max-connections still does
+    @Bean
+    @ConditionalOnProperty("app.execution.virtual-threads")
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadRequests() {
+        return protocolHandler -> virtualThreadExecutor("http-").ifPresent(protocolHandler::setExecutor);
+    }
+
+    // Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 0).factory()) on JDK 21+, the build
+    // still targets Java 11 so it is looked up reflectively
+    static Optional<ExecutorService> virtualThreadExecutor(String prefix) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return Optional.of((ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory));
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads need JDK 21 or later, running {} on platform threads (Java {})",
+                    prefix, System.getProperty("java.version"));
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.alan.example.azure.deviceclient;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Progress of one C2D fan-out: send results from the service client futures and delivery results
+// correlated from the hub feedback by message id.
+public class FanOutJob {
+
+    private final String id;
+    private final String type;
+    private final List<String> deviceIds;
+    private final long startedAt = System.nanoTime();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger sendFailed = new AtomicInteger();
+    private final AtomicInteger delivered = new AtomicInteger();
+    private final AtomicInteger deliveryFailed = new AtomicInteger();
+    private final long[] sendLatencies;
+    private final long[] deliveryLatencies;
+    private volatile boolean feedbackExpired;
+    private volatile long finishedAt;
+
+    FanOutJob(String id, String type, List<String> deviceIds) {
+        this.id = id;
+        this.type = type;
+        this.deviceIds = deviceIds;
+        this.sendLatencies = new long[deviceIds.size()];
+        this.deliveryLatencies = new long[deviceIds.size()];
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    // index of the next device to command, or -1 when every device was handed out
+    int nextIndex() {
+        int index = next.getAndIncrement();
+        return index < deviceIds.size() ? index : -1;
+    }
+
+    String deviceId(int index) {
+        return deviceIds.get(index);
+    }
+
+    void sent(int index, long nanos) {
+        sendLatencies[index] = nanos;
+        sent.incrementAndGet();
+        checkFinished();
+    }
+
+    void sendFailed(int index) {
+        sendFailed.incrementAndGet();
+        checkFinished();
+    }
+
+    void feedback(int index, boolean success, long nanos) {
+        deliveryLatencies[index] = nanos;
+        if (success) {
+            delivered.incrementAndGet();
+        } else {
+            deliveryFailed.incrementAndGet();
+        }
+        checkFinished();
+    }
+
+    boolean sendsDone() {
+        return sent.get() + sendFailed.get() == deviceIds.size();
+    }
+
+    void expireFeedback() {
+        feedbackExpired = true;
+        checkFinished();
+    }
+
+    private void checkFinished() {
+        boolean feedbackDone = feedbackExpired || delivered.get() + deliveryFailed.get() == sent.get();
+        if (finishedAt == 0 && sendsDone() && feedbackDone) {
+            finishedAt = System.nanoTime();
+        }
+    }
+
+    public FanOutReport report() {
+        long end = finishedAt != 0 ? finishedAt : System.nanoTime();
+        return FanOutReport.builder()
+                .id(id)
+                .type(type)
+                .total(deviceIds.size())
+                .sent(sent.get())
+                .sendFailed(sendFailed.get())
+                .delivered(delivered.get())
+                .deliveryFailed(deliveryFailed.get())
+                .awaitingFeedback(sent.get() - delivered.get() - deliveryFailed.get())
+                .running(finishedAt == 0)
+                .elapsedMillis(TimeUnit.NANOSECONDS.toMillis(end - startedAt))
+                .sendLatencyMillis(percentiles(sendLatencies))
+                .deliveryLatencyMillis(percentiles(deliveryLatencies))
+                .build();
+    }
+
+    private static Percentiles percentiles(long[] latencies) {
+        long[] recorded = Arrays.stream(latencies).filter(latency -> latency > 0).sorted().toArray();
+        if (recorded.length == 0) {
+            return null;
+        }
+        return new Percentiles(
+                millis(recorded, 0.5),
+                millis(recorded, 0.99),
+                TimeUnit.NANOSECONDS.toMillis(recorded[recorded.length - 1]));
+    }
+
+    private static long millis(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, index)]);
+    }
+
+    @Data
+    @Builder
+    public static class FanOutReport {
+        private String id;
+        private String type;
+        private int total;
+        private int sent;
+        private int sendFailed;
+        private int delivered;
+        private int deliveryFailed;
+        private int awaitingFeedback;
+        private boolean running;
+        private long elapsedMillis;
+        private Percentiles sendLatencyMillis;
+        private Percentiles deliveryLatencyMillis;
+    }
+
+    @Data
+    public static class Percentiles {
+        private final long p50;
+        private final long p99;
+        private final long max;
+    }
+}
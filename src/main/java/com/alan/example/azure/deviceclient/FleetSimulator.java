@@ -0,0 +1,290 @@
+package com.alan.example.azure.deviceclient;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Drives virtual devices through the TelemetrySender and the device pool on a fixed timeline. Latency is
+// measured from the intended send time to the hub acknowledgement, so a stalled sender shows up as
+// latency instead of silently lowering the offered load (coordinated omission). Each run has a latency timer
+// of its own that keeps every sample of the run, it is unregistered when the run finishes.
+@Service
+@Slf4j
+public class FleetSimulator implements ApplicationRunner {
+
+    private final TelemetrySender telemetrySender;
+    private final MessageEncoder messageEncoder;
+    private final MeterRegistry registry;
+    private final boolean startOnBoot;
+    private final SimulationSettings defaults;
+    private final ScheduledExecutorService scheduler;
+    private volatile Run currentRun;
+
+    public FleetSimulator(TelemetrySender telemetrySender,
+                          MessageEncoder messageEncoder,
+                          MeterRegistry registry,
+                          @Value("${app.simulator.enabled:false}")
+                                  boolean startOnBoot,
+                          @Value("${app.simulator.device-count:100}")
+                                  int deviceCount,
+                          @Value("${app.simulator.device-prefix:simulator-}")
+                                  String devicePrefix,
+                          @Value("${app.simulator.rate-per-device:1}")
+                                  double ratePerDevice,
+                          @Value("${app.simulator.payload-size:64}")
+                                  int payloadSize,
+                          @Value("${app.simulator.type-mix:telemetry:1}")
+                                  String typeMix,
+                          @Value("${app.simulator.duration:5m}")
+                                  Duration duration,
+                          @Value("${app.simulator.threads:4}")
+                                  int threads) {
+        this.telemetrySender = telemetrySender;
+        this.messageEncoder = messageEncoder;
+        this.registry = registry;
+        this.startOnBoot = startOnBoot;
+        this.defaults = SimulationSettings.builder()
+                .deviceCount(deviceCount)
+                .devicePrefix(devicePrefix)
+                .ratePerDevice(ratePerDevice)
+                .payloadSize(payloadSize)
+                .typeMix(typeMix)
+                .durationSeconds(duration.getSeconds())
+                .build();
+        this.scheduler = Executors.newScheduledThreadPool(threads, new CustomizableThreadFactory("simulator-"));
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (startOnBoot) {
+            start(defaults);
+        }
+    }
+
+    public SimulationSettings defaults() {
+        return defaults;
+    }
+
+    public synchronized SimulationReport start(SimulationSettings settings) {
+        stop();
+        Run run = new Run(settings, registry);
+        currentRun = run;
+        log.info("Simulating {} devices at {} msg/s each for {} s, types {}", settings.getDeviceCount(),
+                settings.getRatePerDevice(), settings.getDurationSeconds(), settings.getTypeMix());
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / settings.getRatePerDevice());
+        for (int i = 0; i < settings.getDeviceCount(); i++) {
+            String deviceId = settings.getDevicePrefix() + i;
+            // devices are spread over the first period instead of all firing together
+            long offset = periodNanos * i / settings.getDeviceCount();
+            AtomicLong tick = new AtomicLong();
+            run.tasks.add(scheduler.scheduleAtFixedRate(
+                    () -> send(run, deviceId, run.startedAt + offset + tick.getAndIncrement() * periodNanos),
+                    offset, periodNanos, TimeUnit.NANOSECONDS));
+        }
+        if (settings.getDurationSeconds() > 0) {
+            scheduler.schedule(() -> finish(run), settings.getDurationSeconds(), TimeUnit.SECONDS);
+        }
+        return run.report();
+    }
+
+    public synchronized SimulationReport stop() {
+        Run run = currentRun;
+        if (run == null) {
+            return null;
+        }
+        finish(run);
+        return run.report();
+    }
+
+    public SimulationReport report() {
+        Run run = currentRun;
+        return run == null ? null : run.report();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void finish(Run run) {
+        if (run.finishedAt == 0) {
+            run.tasks.forEach(task -> task.cancel(false));
+            run.finishedAt = System.nanoTime();
+            // the report still reads the timer, it just stops being published under its run tag
+            registry.remove(run.latency);
+            log.info("Simulation finished: {}", run.report());
+        }
+    }
+
+    // an exception escaping here would cancel the periodic task of the device
+    private void send(Run run, String deviceId, long intendedAt) {
+        String type = run.nextType();
+        run.scheduled.incrementAndGet();
+        Message message;
+        try {
+            message = messageEncoder.toDeviceMessage(MyMessage.builder()
+                    .data(run.payload)
+                    .id(messageEncoder.nextId())
+                    .deviceId(deviceId)
+                    .type(type)
+                    .ts(System.currentTimeMillis()).build());
+        } catch (JsonProcessingException | RuntimeException e) {
+            run.failed.incrementAndGet();
+            return;
+        }
+        // sends are not chained on acks, the next tick fires on time whatever the hub does
+        telemetrySender.sendAndAwaitAck(deviceId, type, message).whenComplete((status, e) -> {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof InFlightLimitExceededException) {
+                run.rejected.incrementAndGet();
+            } else if (cause instanceof TelemetryOutbox.StoredForReplayException) {
+                run.stored.incrementAndGet();
+            } else if (cause != null) {
+                run.failed.incrementAndGet();
+            } else if (status == IotHubStatusCode.OK || status == IotHubStatusCode.OK_EMPTY) {
+                run.latency.record(System.nanoTime() - intendedAt, TimeUnit.NANOSECONDS);
+                run.acknowledged.incrementAndGet();
+            } else {
+                run.failed.incrementAndGet();
+            }
+        });
+    }
+
+    static class Run {
+        // longer than any run, the histogram and the max are never reset
+        private static final Duration RUN_HISTOGRAM_EXPIRY = Duration.ofDays(365);
+
+        private final SimulationSettings settings;
+        private final long startedAt = System.nanoTime();
+        private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+        private final String payload;
+        private final String[] types;
+        private final double[] cumulativeWeights;
+        private final Timer latency;
+        private final AtomicLong scheduled = new AtomicLong();
+        private final AtomicLong acknowledged = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong stored = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private volatile long finishedAt;
+
+        Run(SimulationSettings settings, MeterRegistry registry) {
+            this.settings = settings;
+            char[] data = new char[settings.getPayloadSize()];
+            Arrays.fill(data, 'x');
+            this.payload = new String(data);
+            // "type:weight,type:weight"
+            String[] entries = settings.getTypeMix().split(",");
+            this.types = new String[entries.length];
+            this.cumulativeWeights = new double[entries.length];
+            double total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] entry = entries[i].trim().split(":");
+                types[i] = entry[0];
+                total += entry.length > 1 ? Double.parseDouble(entry[1]) : 1;
+                cumulativeWeights[i] = total;
+            }
+            // a single histogram that never rotates, percentiles cover the whole run instead of the last
+            // couple of minutes
+            this.latency = Timer.builder("simulator.latency")
+                    .description("Intended send time to hub acknowledgement of simulated messages")
+                    .tags("run", Long.toString(startedAt))
+                    .publishPercentiles(0.5, 0.9, 0.99, 0.999)
+                    .distributionStatisticBufferLength(1)
+                    .distributionStatisticExpiry(RUN_HISTOGRAM_EXPIRY)
+                    .register(registry);
+        }
+
+        String nextType() {
+            double pick = ThreadLocalRandom.current().nextDouble(cumulativeWeights[cumulativeWeights.length - 1]);
+            for (int i = 0; i < cumulativeWeights.length; i++) {
+                if (pick < cumulativeWeights[i]) {
+                    return types[i];
+                }
+            }
+            return types[types.length - 1];
+        }
+
+        SimulationReport report() {
+            long end = finishedAt != 0 ? finishedAt : System.nanoTime();
+            double seconds = Math.max(1, end - startedAt) / 1e9;
+            Map<String, Double> percentiles = new LinkedHashMap<>();
+            for (ValueAtPercentile value : latency.takeSnapshot().percentileValues()) {
+                percentiles.put("p" + value.percentile() * 100, value.value(TimeUnit.MILLISECONDS));
+            }
+            return SimulationReport.builder()
+                    .settings(settings)
+                    .running(finishedAt == 0)
+                    .elapsedSeconds(seconds)
+                    .scheduled(scheduled.get())
+                    .acknowledged(acknowledged.get())
+                    .rejected(rejected.get())
+                    .stored(stored.get())
+                    .failed(failed.get())
+                    .offeredPerSecond(settings.getDeviceCount() * settings.getRatePerDevice())
+                    .achievedPerSecond(acknowledged.get() / seconds)
+                    .latencyMillis(percentiles)
+                    .maxLatencyMillis(latency.max(TimeUnit.MILLISECONDS))
+                    .build();
+        }
+    }
+
+    @Data
+    @Builder(toBuilder = true)
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class SimulationSettings {
+        private int deviceCount;
+        private String devicePrefix;
+        private double ratePerDevice;
+        private int payloadSize;
+        private String typeMix;
+        private long durationSeconds;
+    }
+
+    @Data
+    @Builder
+    public static class SimulationReport {
+        private SimulationSettings settings;
+        private boolean running;
+        private double elapsedSeconds;
+        private long scheduled;
+        private long acknowledged;
+        private long rejected;
+        private long stored;
+        private long failed;
+        private double offeredPerSecond;
+        private double achievedPerSecond;
+        private Map<String, Double> latencyMillis;
+        private double maxLatencyMillis;
+    }
+}
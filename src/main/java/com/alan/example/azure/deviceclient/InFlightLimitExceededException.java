@@ -0,0 +1,12 @@
+package com.alan.example.azure.deviceclient;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+public class InFlightLimitExceededException extends RuntimeException {
+
+    public InFlightLimitExceededException(String deviceId) {
+        super("Too many messages in flight for device " + deviceId);
+    }
+}
@@ -0,0 +1,239 @@
+package com.alan.example.azure.deviceclient;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounds the messages handed to the device SDK and not yet acknowledged, per device and for the whole node.
+// A slot is taken in submit() and given back by release() when the IotHubEventCallback fires. The lane of
+// a device is dropped once it has nothing in flight, queued or being submitted, so idle devices cost nothing.
+@Component
+@Slf4j
+public class InFlightLimiter {
+
+    public enum Policy {
+        // wait up to block-timeout for a slot, then reject
+        BLOCK,
+        // reject immediately when there is no slot
+        REJECT,
+        // queue up to queue-size sends per device and drop the oldest queued one when full
+        DROP_OLDEST
+    }
+
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final Queue<Lane> starved = new ConcurrentLinkedQueue<>();
+    private final Semaphore global;
+    private final AtomicLong dropped = new AtomicLong();
+    private final int globalLimit;
+    private final int perDeviceLimit;
+    private final Policy policy;
+    private final long blockTimeoutNanos;
+    private final int queueSize;
+
+    public InFlightLimiter(@Value("${app.inflight.global:10000}")
+                                   int globalLimit,
+                           @Value("${app.inflight.per-device:64}")
+                                   int perDeviceLimit,
+                           @Value("${app.inflight.policy:REJECT}")
+                                   Policy policy,
+                           @Value("${app.inflight.block-timeout:1s}")
+                                   Duration blockTimeout,
+                           @Value("${app.inflight.queue-size:64}")
+                                   int queueSize) {
+        this.global = new Semaphore(globalLimit);
+        this.globalLimit = globalLimit;
+        this.perDeviceLimit = perDeviceLimit;
+        this.policy = policy;
+        this.blockTimeoutNanos = blockTimeout.toNanos();
+        this.queueSize = queueSize;
+    }
+
+    // dispatch runs once a slot is held and must lead to exactly one release(deviceId);
+    // onDrop runs instead when a DROP_OLDEST queue pushes the send out
+    public void submit(String deviceId, Runnable dispatch, Runnable onDrop) {
+        submit(deviceId, dispatch, onDrop, true);
+    }
+
+    // for senders running on the telemetry scheduler, which must not wait: BLOCK rejects like REJECT
+    public void trySubmit(String deviceId, Runnable dispatch, Runnable onDrop) {
+        submit(deviceId, dispatch, onDrop, false);
+    }
+
+    private void submit(String deviceId, Runnable dispatch, Runnable onDrop, boolean mayBlock) {
+        // entered under the map's lock for the device, so the lane cannot be retired before this send holds
+        // a slot or sits in its queue
+        Lane lane = lanes.compute(deviceId, (id, current) -> {
+            Lane entered = current != null ? current : new Lane(perDeviceLimit);
+            entered.submitting.incrementAndGet();
+            return entered;
+        });
+        try {
+            switch (policy) {
+                case DROP_OLDEST:
+                    enqueue(deviceId, lane, new Pending(dispatch, onDrop));
+                    break;
+                case BLOCK:
+                    if (mayBlock) {
+                        acquireBlocking(deviceId, lane);
+                        break;
+                    }
+                    // falls through
+                default:
+                    if (!lane.permits.tryAcquire()) {
+                        throw new InFlightLimitExceededException(deviceId);
+                    }
+                    if (!global.tryAcquire()) {
+                        lane.permits.release();
+                        throw new InFlightLimitExceededException(deviceId);
+                    }
+            }
+        } catch (RuntimeException e) {
+            lane.submitting.decrementAndGet();
+            retireIfIdle(deviceId, lane);
+            throw e;
+        }
+        lane.submitting.decrementAndGet();
+        if (policy == Policy.DROP_OLDEST) {
+            drain(lane);
+        } else {
+            dispatch.run();
+        }
+    }
+
+    public void release(String deviceId) {
+        Lane lane = lanes.get(deviceId);
+        if (lane == null) {
+            return;
+        }
+        lane.permits.release();
+        global.release();
+        drain(lane);
+        // lanes that found the global limit exhausted get the freed capacity
+        for (int i = starved.size(); i > 0 && global.availablePermits() > 0; i--) {
+            Lane next = starved.poll();
+            if (next == null) {
+                break;
+            }
+            drain(next);
+        }
+        retireIfIdle(deviceId, lane);
+    }
+
+    // cheap pre-check for callers that queue work before sending, such as the batch endpoint
+    public boolean hasCapacity(String deviceId) {
+        if (policy != Policy.REJECT) {
+            // BLOCK waits for a slot and DROP_OLDEST queues
+            return true;
+        }
+        Lane lane = lanes.get(deviceId);
+        return global.availablePermits() > 0 && (lane == null || lane.permits.availablePermits() > 0);
+    }
+
+    public int inFlight() {
+        return globalLimit - global.availablePermits();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    private void acquireBlocking(String deviceId, Lane lane) {
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        try {
+            if (!lane.permits.tryAcquire(blockTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                throw new InFlightLimitExceededException(deviceId);
+            }
+            if (!global.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                lane.permits.release();
+                throw new InFlightLimitExceededException(deviceId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InFlightLimitExceededException(deviceId);
+        }
+    }
+
+    // the unlocked check keeps busy devices off the map's lock, it is repeated under it with the lane's own
+    // lock held so neither a new submit nor a drain can take a slot in between
+    private void retireIfIdle(String deviceId, Lane lane) {
+        if (lane.permits.availablePermits() < perDeviceLimit || lane.submitting.get() > 0) {
+            return;
+        }
+        lanes.computeIfPresent(deviceId, (id, current) -> {
+            if (current != lane) {
+                return current;
+            }
+            synchronized (lane) {
+                boolean idle = lane.submitting.get() == 0 && lane.waiting.isEmpty()
+                        && lane.permits.availablePermits() == perDeviceLimit;
+                return idle ? null : lane;
+            }
+        });
+    }
+
+    private void enqueue(String deviceId, Lane lane, Pending pending) {
+        Pending oldest = null;
+        synchronized (lane) {
+            lane.waiting.addLast(pending);
+            if (lane.waiting.size() > queueSize) {
+                oldest = lane.waiting.pollFirst();
+            }
+        }
+        if (oldest != null) {
+            dropped.incrementAndGet();
+            log.debug("Dropped oldest queued message of {}", deviceId);
+            oldest.onDrop.run();
+        }
+    }
+
+    private void drain(Lane lane) {
+        while (true) {
+            Pending next;
+            synchronized (lane) {
+                if (lane.waiting.isEmpty() || !lane.permits.tryAcquire()) {
+                    return;
+                }
+                if (!global.tryAcquire()) {
+                    lane.permits.release();
+                    starved.add(lane);
+                    return;
+                }
+                next = lane.waiting.pollFirst();
+            }
+            next.dispatch.run();
+        }
+    }
+
+    private static class Lane {
+        private final Semaphore permits;
+        private final Deque<Pending> waiting = new ArrayDeque<>();
+        // submits between entering the lane and holding a slot or queueing
+        private final AtomicInteger submitting = new AtomicInteger();
+
+        Lane(int permits) {
+            this.permits = new Semaphore(permits);
+        }
+    }
+
+    private static class Pending {
+        private final Runnable dispatch;
+        private final Runnable onDrop;
+
+        Pending(Runnable dispatch, Runnable onDrop) {
+            this.dispatch = dispatch;
+            this.onDrop = onDrop;
+        }
+    }
+}
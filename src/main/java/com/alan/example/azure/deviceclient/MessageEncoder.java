@@ -0,0 +1,369 @@
+package com.alan.example.azure.deviceclient;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageProperty;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+// Single place where telemetry and C2D payloads are serialized. Writers are bound once per format and
+// output buffers and deflaters are borrowed from small pools, so request threads, virtual ones included, do
+// not each keep their own; device types listed in app.encoding.binary-types use the
+// configured binary format instead of JSON. Bodies from compression.threshold up are compressed with the
+// configured codec when that makes them smaller, the codec is named in the content encoding.
+@Component
+public class MessageEncoder {
+
+    // C2D messages carry their type so the device side can pick a handler without decoding the body
+    public static final String TYPE_PROPERTY = "message-type";
+
+    // gzip member header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_LENGTH = 8;
+    // enough for every core to encode at once, a borrower finding the pool empty creates one and the
+    // surplus is dropped on release
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final AtomicLong idGen = new AtomicLong();
+    private final Map<PayloadFormat, ObjectWriter> messageWriters = new EnumMap<>(PayloadFormat.class);
+    // array elements: the same values, except Smile ones go without a header of their own and without
+    // back-references to names of a sibling
+    private final Map<PayloadFormat, ObjectWriter> elementWriters = new EnumMap<>(PayloadFormat.class);
+    private final Set<String> binaryTypes;
+    private final PayloadFormat binaryFormat;
+    private final BlockingQueue<ByteArrayBuilder> buffers = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final Compression compression;
+    private final int compressionThreshold;
+    private final int compressionLevel;
+    private final int maxInflatedSize;
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    public MessageEncoder(ObjectMapper mapper,
+                          @Value("${app.encoding.binary-types:}")
+                                  Set<String> binaryTypes,
+                          @Value("${app.encoding.binary-format:CBOR}")
+                                  PayloadFormat binaryFormat,
+                          @Value("${app.encoding.compression.codec:NONE}")
+                                  Compression compression,
+                          @Value("${app.encoding.compression.threshold:1KB}")
+                                  DataSize compressionThreshold,
+                          @Value("${app.encoding.compression.level:1}")
+                                  int compressionLevel,
+                          @Value("${app.encoding.compression.max-inflated-size:1MB}")
+                                  DataSize maxInflatedSize) {
+        this.binaryTypes = binaryTypes;
+        this.binaryFormat = binaryFormat;
+        this.compression = compression;
+        this.compressionThreshold = (int) Math.min(Integer.MAX_VALUE, compressionThreshold.toBytes());
+        this.compressionLevel = compressionLevel;
+        this.maxInflatedSize = (int) Math.min(Integer.MAX_VALUE - 1, maxInflatedSize.toBytes());
+        for (PayloadFormat format : PayloadFormat.values()) {
+            ObjectMapper formatMapper = format == PayloadFormat.JSON ? mapper : new ObjectMapper(format.factory());
+            messageWriters.put(format, formatMapper.writerFor(MyMessage.class));
+            ObjectMapper elementMapper = format == PayloadFormat.SMILE
+                    ? new ObjectMapper(new SmileFactory()
+                    .disable(SmileGenerator.Feature.WRITE_HEADER)
+                    .disable(SmileGenerator.Feature.CHECK_SHARED_NAMES))
+                    : formatMapper;
+            elementWriters.put(format, elementMapper.writerFor(MyMessage.class));
+        }
+    }
+
+    public String nextId() {
+        return Long.toString(idGen.getAndIncrement());
+    }
+
+    public PayloadFormat formatFor(String type) {
+        return binaryTypes.contains(type) ? binaryFormat : PayloadFormat.JSON;
+    }
+
+    public byte[] encode(MyMessage message, PayloadFormat format) throws JsonProcessingException {
+        return write(messageWriters.get(format), message);
+    }
+
+    // A message encoded to be framed into an array later by toDeviceMessage(type, elements)
+    public byte[] encodeElement(MyMessage message) throws JsonProcessingException {
+        return write(elementWriters.get(formatFor(message.getType())), message);
+    }
+
+    public Message toDeviceMessage(MyMessage message) throws JsonProcessingException {
+        PayloadFormat format = formatFor(message.getType());
+        return deviceMessage(encode(message, format), format);
+    }
+
+    // One message carrying the array of the given elements, all from encodeElement for messages of this type
+    public Message toDeviceMessage(String type, List<byte[]> elements) {
+        PayloadFormat format = formatFor(type);
+        return deviceMessage(array(elements, format), format);
+    }
+
+    public com.microsoft.azure.sdk.iot.service.Message toServiceMessage(MyMessage message) throws JsonProcessingException {
+        PayloadFormat format = formatFor(message.getType());
+        byte[] body = encode(message, format);
+        byte[] compressed = compress(body);
+        com.microsoft.azure.sdk.iot.service.Message serviceMessage =
+                new com.microsoft.azure.sdk.iot.service.Message(compressed != null ? compressed : body);
+        // the service client has no content type setter, the device side reads it back from the properties
+        Map<String, String> properties = new HashMap<>();
+        properties.put(PayloadFormat.CONTENT_TYPE_PROPERTY, format.getContentType());
+        properties.put(TYPE_PROPERTY, message.getType());
+        if (compressed != null) {
+            properties.put(Compression.CONTENT_ENCODING_PROPERTY, compression.getContentEncoding());
+        }
+        serviceMessage.setProperties(properties);
+        return serviceMessage;
+    }
+
+    // A received C2D message with its body decompressed, or the message itself when it was sent uncompressed.
+    // The copy keeps ids and application properties but not the content encoding. A body inflating past
+    // max-inflated-size fails like a corrupt one, a few KB on the wire can expand to gigabytes.
+    public Message decompressed(Message received) throws IOException {
+        Compression codec = Compression.forContentEncoding(received.getProperty(Compression.CONTENT_ENCODING_PROPERTY));
+        if (codec == Compression.NONE) {
+            return received;
+        }
+        byte[] body;
+        try (InputStream in = codec == Compression.GZIP
+                ? new GZIPInputStream(new ByteArrayInputStream(received.getBytes()))
+                : new InflaterInputStream(new ByteArrayInputStream(received.getBytes()))) {
+            body = in.readNBytes(maxInflatedSize + 1);
+        }
+        if (body.length > maxInflatedSize) {
+            throw new IOException("C2D body inflates past " + maxInflatedSize + " bytes");
+        }
+        Message message = new Message(body);
+        if (received.getMessageId() != null) {
+            message.setMessageId(received.getMessageId());
+        }
+        if (received.getCorrelationId() != null) {
+            message.setCorrelationId(received.getCorrelationId());
+        }
+        if (received.getContentType() != null) {
+            message.setContentTypeFinal(received.getContentType());
+        }
+        for (MessageProperty property : received.getProperties()) {
+            if (!Compression.CONTENT_ENCODING_PROPERTY.equals(property.getName())) {
+                message.setProperty(property.getName(), property.getValue());
+            }
+        }
+        return message;
+    }
+
+    private Message deviceMessage(byte[] body, PayloadFormat format) {
+        byte[] compressed = compress(body);
+        Message message = new Message(compressed != null ? compressed : body);
+        message.setContentTypeFinal(format.getContentType());
+        if (compressed != null) {
+            message.setContentEncoding(compression.getContentEncoding());
+        } else if (format == PayloadFormat.JSON) {
+            message.setContentEncoding("utf-8");
+        }
+        return message;
+    }
+
+    // the elements are complete values already, so the array is only framing around them
+    private static byte[] array(List<byte[]> elements, PayloadFormat format) {
+        byte[] start = format.arrayStart(elements.size());
+        byte[] end = format.arrayEnd();
+        boolean commas = format == PayloadFormat.JSON;
+        int length = start.length + end.length + (commas ? Math.max(0, elements.size() - 1) : 0);
+        for (byte[] element : elements) {
+            length += element.length;
+        }
+        byte[] out = new byte[length];
+        System.arraycopy(start, 0, out, 0, start.length);
+        int offset = start.length;
+        for (byte[] element : elements) {
+            if (commas && offset > start.length) {
+                out[offset++] = ',';
+            }
+            System.arraycopy(element, 0, out, offset, element.length);
+            offset += element.length;
+        }
+        System.arraycopy(end, 0, out, offset, end.length);
+        return out;
+    }
+
+    // null when the body stays as it is: compression off, below the threshold or not getting smaller
+    private byte[] compress(byte[] body) {
+        if (compression == Compression.NONE || body.length < compressionThreshold) {
+            return null;
+        }
+        boolean gzip = compression == Compression.GZIP;
+        int limit = body.length - (gzip ? GZIP_TRAILER_LENGTH : 0);
+        byte[] out = new byte[body.length];
+        int length = 0;
+        if (gzip) {
+            System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+            length = GZIP_HEADER.length;
+        }
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(compressionLevel, gzip);
+        }
+        boolean finished;
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            while (!deflater.finished() && length < limit) {
+                length += deflater.deflate(out, length, limit - length);
+            }
+            finished = deflater.finished();
+        } finally {
+            // reset instead of allocating the native state again, end() frees it right away for the surplus
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+        if (!finished) {
+            return null;
+        }
+        if (gzip) {
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            writeIntLittleEndian(out, length, (int) crc.getValue());
+            writeIntLittleEndian(out, length + 4, body.length);
+            length += GZIP_TRAILER_LENGTH;
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    private static void writeIntLittleEndian(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) (value >>> 16);
+        out[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private byte[] write(ObjectWriter writer, Object value) throws JsonProcessingException {
+        ByteArrayBuilder buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new ByteArrayBuilder(512);
+        }
+        try {
+            writer.writeValue(buffer, value);
+            return buffer.toByteArray();
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            // ByteArrayBuilder never does I/O
+            throw new IllegalStateException(e);
+        } finally {
+            buffer.reset();
+            buffers.offer(buffer);
+        }
+    }
+
+    public enum Compression {
+        NONE(null),
+        GZIP("gzip"),
+        // zlib stream, as in HTTP
+        DEFLATE("deflate");
+
+        // C2D messages carry the encoding as a property, like the content type
+        public static final String CONTENT_ENCODING_PROPERTY = "content-encoding";
+
+        @Getter
+        private final String contentEncoding;
+
+        Compression(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+
+        static Compression forContentEncoding(String contentEncoding) {
+            for (Compression compression : values()) {
+                if (compression.contentEncoding != null && compression.contentEncoding.equalsIgnoreCase(contentEncoding)) {
+                    return compression;
+                }
+            }
+            return NONE;
+        }
+    }
+
+    public enum PayloadFormat {
+        JSON("application/json"),
+        CBOR("application/cbor"),
+        SMILE("application/x-jackson-smile");
+
+        public static final String CONTENT_TYPE_PROPERTY = "content-type";
+
+        @Getter
+        private final String contentType;
+
+        PayloadFormat(String contentType) {
+            this.contentType = contentType;
+        }
+
+        JsonFactory factory() {
+            switch (this) {
+                case CBOR:
+                    return new CBORFactory();
+                case SMILE:
+                    return new SmileFactory();
+                default:
+                    return new JsonFactory();
+            }
+        }
+
+        byte[] arrayStart(int count) {
+            switch (this) {
+                case CBOR:
+                    // major type 4 with a definite length, the argument as small as it fits
+                    if (count < 24) {
+                        return new byte[]{(byte) (0x80 | count)};
+                    }
+                    if (count < 0x100) {
+                        return new byte[]{(byte) 0x98, (byte) count};
+                    }
+                    if (count < 0x10000) {
+                        return new byte[]{(byte) 0x99, (byte) (count >>> 8), (byte) count};
+                    }
+                    return new byte[]{(byte) 0x9a, (byte) (count >>> 24), (byte) (count >>> 16), (byte) (count >>> 8),
+                            (byte) count};
+                case SMILE:
+                    // ":)\n" and version 0 without shared names or values, then START_ARRAY
+                    return new byte[]{':', ')', '\n', 0, (byte) 0xf8};
+                default:
+                    return new byte[]{'['};
+            }
+        }
+
+        byte[] arrayEnd() {
+            switch (this) {
+                case CBOR:
+                    return new byte[0];
+                case SMILE:
+                    return new byte[]{(byte) 0xf9};
+                default:
+                    return new byte[]{']'};
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.device.DeviceClient;
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import com.microsoft.azure.sdk.iot.device.IotHubConnectionStatusChangeReason;
+import com.microsoft.azure.sdk.iot.device.MultiplexingClient;
+import com.microsoft.azure.sdk.iot.device.exceptions.MultiplexingClientDeviceRegistrationAuthenticationException;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubConnectionStatus;
+import com.microsoft.azure.sdk.iot.device.transport.RetryPolicy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Shares a few AMQPS connections per hub between many device clients when app.transport.mode is
+// amqps-multiplexed. Devices asking for a connection within registration-linger are registered
+// together with one registerDeviceClients call.
+@Component
+@Slf4j
+public class MultiplexedConnections {
+
+    public enum Assignment {
+        // connection picked from the device id hash, a device lands on the same connection unless that one is
+        // full, then on the next one with room
+        HASH,
+        // first connection of the hub with room left
+        FILL
+    }
+
+    private final ConcurrentMap<String, Connection[]> connectionsByHub = new ConcurrentHashMap<>();
+    private final Map<DeviceClient, Connection> owners = new ConcurrentHashMap<>();
+    private final boolean enabled;
+    private final int connectionsPerHub;
+    private final int maxDevicesPerConnection;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final Assignment assignment;
+    private final ExecutorService deviceExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final ConnectionManager connectionManager;
+
+    public MultiplexedConnections(@Value("${app.transport.mode:mqtt}")
+                                          String transportMode,
+                                  @Value("${app.multiplexing.connections-per-hub:10}")
+                                          int connectionsPerHub,
+                                  @Value("${app.multiplexing.max-devices-per-connection:1000}")
+                                          int maxDevicesPerConnection,
+                                  @Value("${app.multiplexing.registration-batch-size:100}")
+                                          int batchSize,
+                                  @Value("${app.multiplexing.registration-linger:200ms}")
+                                          Duration linger,
+                                  @Value("${app.multiplexing.assignment:HASH}")
+                                          Assignment assignment,
+                                  @Value("${app.pool.max-size:10000}")
+                                          long poolMaxSize,
+                                  @Qualifier("deviceExecutor")
+                                          ExecutorService deviceExecutor,
+                                  @Qualifier("telemetryScheduler")
+                                          ScheduledExecutorService scheduler,
+                                  ConnectionManager connectionManager) {
+        this.enabled = "amqps-multiplexed".equalsIgnoreCase(transportMode);
+        this.connectionsPerHub = connectionsPerHub;
+        this.maxDevicesPerConnection = Math.min(maxDevicesPerConnection, MultiplexingClient.MAX_MULTIPLEX_DEVICE_COUNT_AMQPS);
+        this.batchSize = batchSize;
+        this.lingerMillis = linger.toMillis();
+        this.assignment = assignment;
+        this.deviceExecutor = deviceExecutor;
+        this.scheduler = scheduler;
+        this.connectionManager = connectionManager;
+        // a single hub has to take the whole pool when DPS assigns every device to it
+        long capacity = (long) connectionsPerHub * this.maxDevicesPerConnection;
+        if (enabled && capacity < poolMaxSize) {
+            log.warn("Multiplexed connections take {} devices per hub ({} x {}), below app.pool.max-size {}",
+                    capacity, connectionsPerHub, this.maxDevicesPerConnection, poolMaxSize);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // The device client must be built for AMQPS against the assigned hub and must not be opened on its own.
+    // hubDeviceId is the id the hub knows the device by, it names the device in registration errors.
+    public CompletableFuture<Void> register(String iotHubUri, String deviceId, String hubDeviceId, DeviceClient deviceClient) {
+        Connection connection = select(iotHubUri, deviceId);
+        if (connection == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No multiplexed connection left on "
+                    + iotHubUri + " for " + deviceId));
+        }
+        Registration registered = new Registration(deviceId, hubDeviceId);
+        owners.put(deviceClient, connection);
+        boolean flushNow;
+        boolean first;
+        synchronized (connection) {
+            first = connection.pending.isEmpty();
+            connection.pending.put(deviceClient, registered);
+            flushNow = connection.pending.size() >= batchSize;
+        }
+        if (flushNow) {
+            deviceExecutor.execute(() -> flush(connection));
+        } else if (first) {
+            scheduler.schedule(() -> deviceExecutor.execute(() -> flush(connection)), lingerMillis, TimeUnit.MILLISECONDS);
+        }
+        return registered.whenComplete((v, e) -> {
+            if (e != null) {
+                release(deviceClient);
+            }
+        });
+    }
+
+    public void unregister(String deviceId, DeviceClient deviceClient) {
+        Connection connection = owners.get(deviceClient);
+        if (connection == null) {
+            return;
+        }
+        if (connection.dead) {
+            // the SDK dropped the whole connection, there is nothing left to unregister from
+            release(deviceClient);
+            return;
+        }
+        try {
+            connection.client.unregisterDeviceClient(deviceClient);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Could not unregister {} from multiplexed connection {}", deviceId, connection.name, e);
+        } finally {
+            release(deviceClient);
+        }
+    }
+
+    @PreDestroy
+    public void closeAll() {
+        connectionsByHub.values().forEach(connections -> {
+            for (Connection connection : connections) {
+                if (connection != null && connection.opened) {
+                    try {
+                        connection.client.close();
+                    } catch (Exception e) {
+                        log.warn("Error closing multiplexed connection {}", connection.name, e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void release(DeviceClient deviceClient) {
+        Connection connection = owners.remove(deviceClient);
+        if (connection != null) {
+            synchronized (connection) {
+                connection.devices--;
+            }
+        }
+    }
+
+    private Connection select(String iotHubUri, String deviceId) {
+        Connection[] connections = connectionsByHub.computeIfAbsent(iotHubUri, hub -> new Connection[connectionsPerHub]);
+        int first = assignment == Assignment.HASH ? Math.floorMod(deviceId.hashCode(), connectionsPerHub) : 0;
+        for (int i = 0; i < connectionsPerHub; i++) {
+            Connection connection = reserve(connections, iotHubUri, (first + i) % connectionsPerHub);
+            if (connection != null) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    private Connection reserve(Connection[] connections, String iotHubUri, int index) {
+        Connection connection;
+        synchronized (connections) {
+            if (connections[index] == null) {
+                Connection created = new Connection(iotHubUri, index, connectionManager.retryPolicy());
+                created.client.registerConnectionStatusChangeCallback((status, reason, throwable, context) ->
+                        onStatusChange(connections, index, created, status, reason), null);
+                connections[index] = created;
+            }
+            connection = connections[index];
+        }
+        synchronized (connection) {
+            if (connection.devices >= maxDevicesPerConnection) {
+                return null;
+            }
+            connection.devices++;
+        }
+        return connection;
+    }
+
+    // DISCONNECTED means the SDK gave up on the shared connection. It is taken out of its slot so the next
+    // registration builds a new one; the devices on it report DISCONNECTED as well and leave the pool.
+    private void onStatusChange(Connection[] connections, int index, Connection connection,
+                                IotHubConnectionStatus status, IotHubConnectionStatusChangeReason reason) {
+        log.info("Multiplexed connection {} is {} ({})", connection.name, status, reason);
+        if (status != IotHubConnectionStatus.DISCONNECTED || reason == IotHubConnectionStatusChangeReason.CLIENT_CLOSE) {
+            return;
+        }
+        connection.dead = true;
+        synchronized (connections) {
+            if (connections[index] == connection) {
+                connections[index] = null;
+            }
+        }
+        // not from the SDK callback thread
+        deviceExecutor.execute(() -> {
+            try {
+                connection.client.close();
+            } catch (Exception e) {
+                log.debug("Error closing dropped multiplexed connection {}", connection.name, e);
+            }
+        });
+    }
+
+    private void flush(Connection connection) {
+        Map<DeviceClient, Registration> batch;
+        synchronized (connection) {
+            if (connection.pending.isEmpty()) {
+                return;
+            }
+            batch = connection.pending;
+            connection.pending = new HashMap<>();
+        }
+        // one flush per connection at a time, registerDeviceClients blocks until the hub accepted the batch.
+        // A lock rather than synchronized so a virtual thread blocked here does not pin its carrier.
+        connection.flushLock.lock();
+        try {
+            if (connection.dead) {
+                throw new IllegalStateException("Multiplexed connection " + connection.name + " was dropped");
+            }
+            if (!connection.opened) {
+                connection.client.open();
+                connection.opened = true;
+                log.info("Opened multiplexed connection {}", connection.name);
+            }
+            List<DeviceClient> deviceClients = new ArrayList<>(batch.keySet());
+            connection.client.registerDeviceClients(deviceClients);
+            log.info("Registered {} devices on multiplexed connection {}", deviceClients.size(), connection.name);
+            batch.values().forEach(registered -> registered.complete(null));
+        } catch (MultiplexingClientDeviceRegistrationAuthenticationException e) {
+            // the rest of the batch is registered, only the devices the hub refused fail
+            Map<String, Exception> refused = e.getRegistrationExceptions();
+            log.warn("Hub refused {} of {} devices on multiplexed connection {}", refused.size(), batch.size(),
+                    connection.name);
+            batch.forEach((deviceClient, registered) -> {
+                Exception cause = refused.get(registered.hubDeviceId);
+                if (cause == null) {
+                    registered.complete(null);
+                } else {
+                    registered.completeExceptionally(new AssignmentRejectedException(registered.deviceId,
+                            connection.name, cause));
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failBatch(connection, batch, e);
+        } catch (Exception e) {
+            log.error("Could not register {} devices on multiplexed connection {}", batch.size(), connection.name, e);
+            failBatch(connection, batch, e);
+        } finally {
+            connection.flushLock.unlock();
+        }
+    }
+
+    // Part of the batch may have been registered before the failure. Those devices are unregistered so they
+    // do not hold SDK slots after their futures fail and their reserved slots are released.
+    private void failBatch(Connection connection, Map<DeviceClient, Registration> batch, Exception e) {
+        if (connection.opened && !connection.dead && !Thread.currentThread().isInterrupted()) {
+            try {
+                connection.client.unregisterDeviceClients(new ArrayList<>(batch.keySet()));
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            } catch (Exception unregisterException) {
+                log.warn("Could not unregister failed batch from multiplexed connection {}", connection.name,
+                        unregisterException);
+            }
+        }
+        batch.values().forEach(registered -> registered.completeExceptionally(e));
+    }
+
+    private static class Connection {
+        private final String name;
+        private final MultiplexingClient client;
+        private final Lock flushLock = new ReentrantLock();
+        private Map<DeviceClient, Registration> pending = new HashMap<>();
+        // reserved or registered devices
+        private int devices;
+        private volatile boolean opened;
+        // set once the SDK gave up on the connection, it is no longer in connectionsByHub
+        private volatile boolean dead;
+
+        Connection(String iotHubUri, int index, RetryPolicy retryPolicy) {
+            this.name = iotHubUri + "#" + index;
+            this.client = new MultiplexingClient(iotHubUri, IotHubClientProtocol.AMQPS);
+            // the shared connection reconnects for all its devices, their own retry policy is not used
+            this.client.setRetryPolicy(retryPolicy);
+        }
+    }
+
+    private static class Registration extends CompletableFuture<Void> {
+        private final String deviceId;
+        private final String hubDeviceId;
+
+        Registration(String deviceId, String hubDeviceId) {
+            this.deviceId = deviceId;
+            this.hubDeviceId = hubDeviceId;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.alan.example.azure.deviceclient;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Append-only log of DPS assignments keyed by registration id, replayed into memory at startup.
+// Each record is (registrationId, iotHubUri, deviceId) written with writeUTF, an empty hub uri is a tombstone.
+// The file is rewritten when it holds more stale records than live ones.
+@Component
+@Slf4j
+public class ProvisioningResultStore {
+
+    private final Map<String, Assignment> assignments = new ConcurrentHashMap<>();
+    private final Path path;
+    private final boolean enabled;
+    private FileChannel channel;
+
+    public ProvisioningResultStore(@Value("${app.provisioning.store.path:data/provisioning-results.bin}")
+                                           String path,
+                                   @Value("${app.provisioning.store.enabled:true}")
+                                           boolean enabled) {
+        this.path = Paths.get(path);
+        this.enabled = enabled;
+    }
+
+    @PostConstruct
+    public void load() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        long records = 0;
+        long validLength = 0;
+        if (Files.exists(path)) {
+            byte[] content = Files.readAllBytes(path);
+            ByteArrayInputStream bytes = new ByteArrayInputStream(content);
+            DataInputStream input = new DataInputStream(bytes);
+            try {
+                while (true) {
+                    String registrationId = input.readUTF();
+                    String iotHubUri = input.readUTF();
+                    String deviceId = input.readUTF();
+                    apply(registrationId, iotHubUri, deviceId);
+                    records++;
+                    validLength = content.length - bytes.available();
+                }
+            } catch (EOFException | UTFDataFormatException e) {
+                // end of log, or a record cut short by a crash which is dropped below
+            }
+        }
+        if (records > 2L * assignments.size()) {
+            compact();
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.truncate(validLength);
+            channel.position(validLength);
+        }
+        log.info("Loaded {} provisioning results from {}", assignments.size(), path);
+    }
+
+    public Optional<Assignment> find(String registrationId) {
+        return Optional.ofNullable(assignments.get(registrationId));
+    }
+
+    public void save(String registrationId, String iotHubUri, String deviceId) {
+        Assignment assignment = new Assignment(iotHubUri, deviceId);
+        if (assignment.equals(assignments.put(registrationId, assignment))) {
+            return;
+        }
+        append(registrationId, iotHubUri, deviceId);
+    }
+
+    public void remove(String registrationId) {
+        if (assignments.remove(registrationId) != null) {
+            append(registrationId, "", "");
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void apply(String registrationId, String iotHubUri, String deviceId) {
+        if (iotHubUri.isEmpty()) {
+            assignments.remove(registrationId);
+        } else {
+            assignments.put(registrationId, new Assignment(iotHubUri, deviceId));
+        }
+    }
+
+    private synchronized void append(String registrationId, String iotHubUri, String deviceId) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            ByteBuffer record = ByteBuffer.wrap(encode(registrationId, iotHubUri, deviceId));
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } catch (IOException e) {
+            log.warn("Could not persist provisioning result for {}", registrationId, e);
+        }
+    }
+
+    private synchronized void compact() throws IOException {
+        close();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Assignment> entry : assignments.entrySet()) {
+                ByteBuffer record = ByteBuffer.wrap(encode(entry.getKey(),
+                        entry.getValue().getIotHubUri(), entry.getValue().getDeviceId()));
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+            }
+            out.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static byte[] encode(String registrationId, String iotHubUri, String deviceId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(registrationId);
+        out.writeUTF(iotHubUri);
+        out.writeUTF(deviceId);
+        return bytes.toByteArray();
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class Assignment {
+        private String iotHubUri;
+        private String deviceId;
+    }
+}
@@ -1,42 +1,153 @@
 package com.alan.example.azure.deviceclient;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.microsoft.azure.sdk.iot.service.IotHubServiceClientProtocol;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.microsoft.azure.sdk.iot.service.DeliveryAcknowledgement;
 import com.microsoft.azure.sdk.iot.service.Message;
-import com.microsoft.azure.sdk.iot.service.ServiceClient;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @Service
 @Slf4j
 public class ServiceCommandClient {
 
-    private final ServiceClient serviceClient;
-    private final AtomicLong idGen = new AtomicLong();
+    private final ServiceTransport serviceTransport;
 
-    private final ObjectMapper mapper;
+    private final MessageEncoder messageEncoder;
+    private final DeviceProvisioningService deviceProvisioningService;
+    private final ScheduledExecutorService scheduler;
+    private final int fanOutParallelism;
+    private final Duration feedbackTimeout;
+    private final ConcurrentMap<String, PendingFeedback> pendingFeedback = new ConcurrentHashMap<>();
+    private final Cache<String, FanOutJob> fanOutJobs = Caffeine.newBuilder()
+            .expireAfterWrite(Duration.ofHours(1))
+            .build();
 
-    public ServiceCommandClient(@Value("${app.service.connection-string}") String connectionString,
-                                @Autowired ObjectMapper mapper) {
-        this.mapper = mapper;
-        this.serviceClient = new ServiceClient(connectionString, IotHubServiceClientProtocol.AMQPS);
+    public ServiceCommandClient(ServiceTransport serviceTransport,
+                                @Autowired MessageEncoder messageEncoder,
+                                @Autowired DeviceProvisioningService deviceProvisioningService,
+                                @Qualifier("telemetryScheduler") ScheduledExecutorService scheduler,
+                                @Value("${app.service.fan-out.parallelism:256}") int fanOutParallelism,
+                                @Value("${app.service.fan-out.feedback-timeout:2m}") Duration feedbackTimeout) {
+        this.messageEncoder = messageEncoder;
+        this.deviceProvisioningService = deviceProvisioningService;
+        this.scheduler = scheduler;
+        this.fanOutParallelism = fanOutParallelism;
+        this.feedbackTimeout = feedbackTimeout;
+        this.serviceTransport = serviceTransport;
     }
 
     public void sendMessage2Device(String type, String deviceId) {
 
         try {
-            Message message = new Message(mapper.writeValueAsBytes(MyMessage.builder().deviceId(deviceId).data("SERVICE")
-                    .id(String.valueOf(idGen.getAndIncrement()))
+            Message message = messageEncoder.toServiceMessage(MyMessage.builder().deviceId(deviceId).data("SERVICE")
+                    .id(messageEncoder.nextId())
                     .type(type)
-                    .ts(System.currentTimeMillis()).build()));
-            this.serviceClient.sendAsync(deviceId, message);
+                    .ts(System.currentTimeMillis()).build());
+            this.serviceTransport.sendAsync(deviceId, message).exceptionally(e -> {
+                log.error("Command {} to {} failed", type, deviceId, e);
+                return null;
+            });
         } catch (JsonProcessingException e) {
             e.printStackTrace();
         }
     }
+
+    // Sends the command to every device (all pooled devices when the list is empty) keeping at most
+    // fan-out.parallelism sends outstanding, and follows delivery through the hub feedback.
+    public FanOutJob fanOut(String type, List<String> deviceIds) {
+        List<String> targets = deviceIds == null || deviceIds.isEmpty()
+                ? deviceProvisioningService.pooledDeviceIds()
+                : deviceIds;
+        serviceTransport.receiveFeedback(this::feedback);
+        FanOutJob job = new FanOutJob(UUID.randomUUID().toString(), type, targets);
+        fanOutJobs.put(job.getId(), job);
+        log.info("Fan-out {} of {} to {} devices", job.getId(), type, targets.size());
+        if (targets.isEmpty()) {
+            job.expireFeedback();
+        }
+        for (int i = 0; i < Math.min(fanOutParallelism, targets.size()); i++) {
+            sendNext(job);
+        }
+        return job;
+    }
+
+    public Optional<FanOutJob> fanOutJob(String id) {
+        return Optional.ofNullable(fanOutJobs.getIfPresent(id));
+    }
+
+    // each completed send starts the next one, so the parallelism is kept without a blocked thread
+    private void sendNext(FanOutJob job) {
+        int index = job.nextIndex();
+        if (index < 0) {
+            return;
+        }
+        String deviceId = job.deviceId(index);
+        Message message;
+        try {
+            message = messageEncoder.toServiceMessage(MyMessage.builder().deviceId(deviceId).data("SERVICE")
+                    .id(messageEncoder.nextId())
+                    .type(job.getType())
+                    .ts(System.currentTimeMillis()).build());
+        } catch (JsonProcessingException e) {
+            job.sendFailed(index);
+            sendNext(job);
+            return;
+        }
+        String messageId = job.getId() + ":" + index;
+        message.setMessageId(messageId);
+        message.setDeliveryAcknowledgementFinal(DeliveryAcknowledgement.Full);
+        long start = System.nanoTime();
+        pendingFeedback.put(messageId, new PendingFeedback(job, index, start));
+        serviceTransport.sendAsync(deviceId, message).whenComplete((sent, e) -> {
+            if (e != null) {
+                pendingFeedback.remove(messageId);
+                log.debug("Fan-out {} to {} failed", job.getId(), deviceId, e);
+                job.sendFailed(index);
+            } else {
+                job.sent(index, System.nanoTime() - start);
+            }
+            if (job.sendsDone()) {
+                scheduler.schedule(() -> expireFeedback(job), feedbackTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            }
+            sendNext(job);
+        });
+    }
+
+    private void expireFeedback(FanOutJob job) {
+        pendingFeedback.values().removeIf(pending -> pending.job == job);
+        job.expireFeedback();
+    }
+
+    private void feedback(String messageId, boolean delivered) {
+        PendingFeedback pending = pendingFeedback.remove(messageId);
+        if (pending != null) {
+            pending.job.feedback(pending.index, delivered, System.nanoTime() - pending.sentAt);
+        }
+    }
+
+    private static class PendingFeedback {
+        private final FanOutJob job;
+        private final int index;
+        private final long sentAt;
+
+        PendingFeedback(FanOutJob job, int index, long sentAt) {
+            this.job = job;
+            this.index = index;
+            this.sentAt = sentAt;
+        }
+    }
 }
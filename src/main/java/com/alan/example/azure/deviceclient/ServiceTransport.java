@@ -0,0 +1,16 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.service.Message;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+// Cloud-to-device side of the hub used by ServiceCommandClient.
+public interface ServiceTransport {
+
+    CompletableFuture<Void> sendAsync(String deviceId, Message message);
+
+    // starts delivering feedback as (original message id, delivered) for messages sent with a message id
+    // and full delivery acknowledgement; only the first listener is kept
+    void receiveFeedback(BiConsumer<String, Boolean> listener);
+}
@@ -0,0 +1,144 @@
+package com.alan.example.azure.deviceclient;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.microsoft.azure.sdk.iot.device.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PreDestroy;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Packs readings of a device into one array message, flushed when max-size readings are queued
+// or linger has passed since the first one. The device SDK only batches natively over HTTPS, so the
+// MQTT/AMQPS clients in the pool get a single packed payload instead. The hub refuses messages over 256KB,
+// so a batch is also flushed before a reading would take its encoded size past max-bytes. Readings are
+// encoded once as they arrive, the batch payload is framed around those bytes.
+@Service
+@Slf4j
+public class TelemetryBatcher {
+
+    // array start and end, with room for a CBOR length or the Smile header
+    private static final int ARRAY_OVERHEAD = 16;
+
+    private final ConcurrentMap<String, Batch> pending = new ConcurrentHashMap<>();
+    private final TelemetrySender telemetrySender;
+    private final MessageEncoder messageEncoder;
+    private final ScheduledExecutorService scheduler;
+    private final int maxSize;
+    private final long maxBytes;
+    private final long lingerMillis;
+    private final Counter droppedCounter;
+
+    public TelemetryBatcher(TelemetrySender telemetrySender,
+                            MessageEncoder messageEncoder,
+                            MeterRegistry registry,
+                            @Qualifier("telemetryScheduler")
+                                    ScheduledExecutorService scheduler,
+                            @Value("${app.batch.max-size:100}")
+                                    int maxSize,
+                            @Value("${app.batch.max-bytes:240KB}")
+                                    DataSize maxBytes,
+                            @Value("${app.batch.linger:50ms}")
+                                    Duration linger) {
+        this.telemetrySender = telemetrySender;
+        this.messageEncoder = messageEncoder;
+        this.scheduler = scheduler;
+        this.maxSize = maxSize;
+        this.maxBytes = maxBytes.toBytes();
+        this.lingerMillis = linger.toMillis();
+        Gauge.builder("telemetry.batch.pending", pending, Map::size)
+                .description("Device batches waiting for size or linger flush")
+                .register(registry);
+        this.droppedCounter = Counter.builder("telemetry.batch.dropped")
+                .description("Batched readings accepted by the API but not handed to the hub")
+                .register(registry);
+    }
+
+    public void add(String deviceId, MyMessage reading) throws JsonProcessingException {
+        byte[] element = messageEncoder.encodeElement(reading);
+        // at most a separator per reading on top of the reading itself
+        long size = element.length + 1;
+        List<Batch> full = new ArrayList<>(2);
+        // one batch per device and type so a batch is encoded in the format of its type
+        pending.compute(reading.getType() + '/' + deviceId, (key, batch) -> {
+            if (batch != null && batch.bytes + size > maxBytes) {
+                full.add(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                Batch created = new Batch(deviceId, reading.getType(), maxSize);
+                scheduler.schedule(() -> flush(key, created), lingerMillis, TimeUnit.MILLISECONDS);
+                batch = created;
+            }
+            batch.elements.add(element);
+            batch.bytes += size;
+            if (batch.elements.size() >= maxSize || batch.bytes >= maxBytes) {
+                full.add(batch);
+                return null;
+            }
+            return batch;
+        });
+        // a full batch goes out on the request thread, which may wait for a slot under the BLOCK policy
+        for (Batch batch : full) {
+            send(batch, telemetrySender::send);
+        }
+    }
+
+    @PreDestroy
+    public void flushAll() {
+        pending.forEach(this::flush);
+    }
+
+    private void flush(String key, Batch batch) {
+        // a batch already sent because it filled up is no longer mapped
+        if (pending.remove(key, batch)) {
+            send(batch, telemetrySender::trySend);
+        }
+    }
+
+    // the readings were already answered with OK, what fails from here on is only counted and logged
+    private void send(Batch batch, Sender sender) {
+        Message message = messageEncoder.toDeviceMessage(batch.type, batch.elements);
+        message.setProperty("batch-size", String.valueOf(batch.elements.size()));
+        sender.send(batch.deviceId, batch.type, message).exceptionally(e -> {
+            droppedCounter.increment(batch.elements.size());
+            log.error("Batch of {} readings for {} not sent", batch.elements.size(), batch.deviceId, e);
+            return null;
+        });
+    }
+
+    private interface Sender {
+        CompletableFuture<Void> send(String deviceId, String type, Message message);
+    }
+
+    // identity equality so a linger flush never takes a newer batch for the same device
+    private static class Batch {
+        private final String deviceId;
+        private final String type;
+        // the readings as encoded by add, in arrival order
+        private final List<byte[]> elements;
+        // encoded size of the readings plus the array around them, only written under the map's lock for the key
+        private long bytes = ARRAY_OVERHEAD;
+
+        Batch(String deviceId, String type, int capacity) {
+            this.deviceId = deviceId;
+            this.type = type;
+            this.elements = new ArrayList<>(capacity);
+        }
+    }
+}
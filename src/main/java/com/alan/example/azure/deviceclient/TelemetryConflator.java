@@ -0,0 +1,125 @@
+package com.alan.example.azure.deviceclient;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.microsoft.azure.sdk.iot.device.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Keeps only the newest reading of a device and type for types that report state rather than events. The
+// first reading opens a window, later ones replace it, and the one left when the window ends is sent.
+// Types not listed in app.conflation.types never come here.
+@Service
+@Slf4j
+public class TelemetryConflator {
+
+    private final ConcurrentMap<String, Window> pending = new ConcurrentHashMap<>();
+    private final TelemetrySender telemetrySender;
+    private final MessageEncoder messageEncoder;
+    private final ScheduledExecutorService scheduler;
+    private final Set<String> types;
+    private final long windowMillis;
+    private final Counter conflatedCounter;
+    private final Counter droppedCounter;
+
+    public TelemetryConflator(TelemetrySender telemetrySender,
+                              MessageEncoder messageEncoder,
+                              MeterRegistry registry,
+                              @Qualifier("telemetryScheduler")
+                                      ScheduledExecutorService scheduler,
+                              @Value("${app.conflation.types:}")
+                                      Set<String> types,
+                              @Value("${app.conflation.window:1s}")
+                                      Duration window) {
+        this.telemetrySender = telemetrySender;
+        this.messageEncoder = messageEncoder;
+        this.scheduler = scheduler;
+        this.types = types;
+        this.windowMillis = window.toMillis();
+        Gauge.builder("telemetry.conflation.pending", pending, Map::size)
+                .description("Device readings held until their conflation window ends")
+                .register(registry);
+        this.conflatedCounter = Counter.builder("telemetry.conflated")
+                .description("Readings replaced by a newer one of the same device and type, never sent")
+                .register(registry);
+        this.droppedCounter = Counter.builder("telemetry.conflation.dropped")
+                .description("Conflated readings accepted by the API but not handed to the hub")
+                .register(registry);
+    }
+
+    public boolean conflates(String type) {
+        return types.contains(type);
+    }
+
+    public void add(String deviceId, MyMessage reading) {
+        boolean[] replaced = new boolean[1];
+        pending.compute(reading.getType() + '/' + deviceId, (key, window) -> {
+            if (window == null) {
+                Window created = new Window(deviceId, reading.getType());
+                scheduler.schedule(() -> flush(key, created), windowMillis, TimeUnit.MILLISECONDS);
+                window = created;
+            } else {
+                replaced[0] = true;
+            }
+            window.latest = reading;
+            return window;
+        });
+        if (replaced[0]) {
+            conflatedCounter.increment();
+        }
+    }
+
+    @PreDestroy
+    public void flushAll() {
+        pending.forEach(this::flush);
+    }
+
+    private void flush(String key, Window window) {
+        // once unmapped no add() can touch the window again, a new reading opens the next one
+        if (pending.remove(key, window)) {
+            send(window);
+        }
+    }
+
+    private void send(Window window) {
+        try {
+            Message message = messageEncoder.toDeviceMessage(window.latest);
+            // runs on the telemetry scheduler, so no waiting for an in-flight slot
+            telemetrySender.trySend(window.deviceId, window.type, message).exceptionally(e -> {
+                droppedCounter.increment();
+                log.error("Conflated reading for {} not sent", window.deviceId, e);
+                return null;
+            });
+        } catch (JsonProcessingException e) {
+            droppedCounter.increment();
+            log.error("Conflated reading for {} could not be serialized", window.deviceId, e);
+        }
+    }
+
+    // identity equality so a window flush never takes a newer window for the same device
+    private static class Window {
+        private final String deviceId;
+        private final String type;
+        // only written under the map's lock for the key
+        private MyMessage latest;
+
+        Window(String deviceId, String type) {
+            this.deviceId = deviceId;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Ack latency, throughput and error meters for device-to-cloud sends. Per-message logging is replaced by
+// one line every sample-rate acks and a periodic summary.
+@Component
+@Slf4j
+public class TelemetryMetrics {
+
+    private static final String OTHER_TYPE = "other";
+    private static final int STATUS_COUNT = IotHubStatusCode.values().length;
+
+    private final MeterRegistry registry;
+    // meters are cached per type so the ack path does not build meter ids
+    private final ConcurrentMap<String, Timer[]> ackTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> sentCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> rejectedCounters = new ConcurrentHashMap<>();
+    private final AtomicLong ackSequence = new AtomicLong();
+    private final LongAdder sentInWindow = new LongAdder();
+    private final LongAdder ackedInWindow = new LongAdder();
+    private final LongAdder failedInWindow = new LongAdder();
+    private final int maxTypes;
+    private final long logSampleRate;
+
+    public TelemetryMetrics(MeterRegistry registry,
+                            InFlightLimiter inFlightLimiter,
+                            DeviceProvisioningService deviceProvisioningService,
+                            @Qualifier("telemetryScheduler")
+                                    ScheduledExecutorService scheduler,
+                            @Value("${app.metrics.max-types:100}")
+                                    int maxTypes,
+                            @Value("${app.metrics.log-sample-rate:1000}")
+                                    long logSampleRate,
+                            @Value("${app.metrics.log-interval:60s}")
+                                    Duration logInterval) {
+        this.registry = registry;
+        this.maxTypes = maxTypes;
+        this.logSampleRate = Math.max(1, logSampleRate);
+        Gauge.builder("telemetry.inflight", inFlightLimiter, InFlightLimiter::inFlight)
+                .description("Messages handed to device clients and not acknowledged yet")
+                .register(registry);
+        FunctionCounter.builder("telemetry.dropped", inFlightLimiter, InFlightLimiter::dropped)
+                .description("Queued messages dropped by the drop_oldest policy")
+                .register(registry);
+        Gauge.builder("device.pool.size", deviceProvisioningService, DeviceProvisioningService::poolSize)
+                .description("Device clients held in the pool")
+                .register(registry);
+        scheduler.scheduleAtFixedRate(this::logSummary,
+                logInterval.toMillis(), logInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void sent(String type) {
+        sentCounters.computeIfAbsent(typeTag(type, sentCounters), t -> Counter.builder("telemetry.sent")
+                .tags("type", t)
+                .register(registry)).increment();
+        sentInWindow.increment();
+    }
+
+    public void rejected(String type) {
+        rejectedCounters.computeIfAbsent(typeTag(type, rejectedCounters), t -> Counter.builder("telemetry.rejected")
+                .tags("type", t)
+                .register(registry)).increment();
+    }
+
+    public void acknowledged(String deviceId, String type, IotHubStatusCode status, long latencyNanos) {
+        ackTimer(type, status).record(latencyNanos, TimeUnit.NANOSECONDS);
+        ackedInWindow.increment();
+        boolean success = status == IotHubStatusCode.OK || status == IotHubStatusCode.OK_EMPTY;
+        if (!success) {
+            failedInWindow.increment();
+        }
+        if (ackSequence.incrementAndGet() % logSampleRate == 0) {
+            log.info("IoT Hub responded to message of {} ({}) with status {} in {} ms",
+                    deviceId, type, status, TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+        }
+    }
+
+    private Timer ackTimer(String type, IotHubStatusCode status) {
+        String tag = typeTag(type, ackTimers);
+        Timer[] timers = ackTimers.computeIfAbsent(tag, t -> new Timer[STATUS_COUNT]);
+        Timer timer = timers[status.ordinal()];
+        if (timer == null) {
+            // racing registrations resolve to the same meter in the registry
+            timer = Timer.builder("telemetry.ack.latency")
+                    .description("Time from sendEventAsync to the IoT Hub status callback")
+                    .tags("type", tag, "status", status.name())
+                    .publishPercentileHistogram()
+                    .register(registry);
+            timers[status.ordinal()] = timer;
+        }
+        return timer;
+    }
+
+    // device types come from the request path, cap them so a bad client cannot explode tag cardinality
+    private String typeTag(String type, ConcurrentMap<String, ?> meters) {
+        return meters.size() < maxTypes || meters.containsKey(type) ? type : OTHER_TYPE;
+    }
+
+    private void logSummary() {
+        long sent = sentInWindow.sumThenReset();
+        long acked = ackedInWindow.sumThenReset();
+        long failed = failedInWindow.sumThenReset();
+        if (sent > 0 || acked > 0) {
+            log.info("Telemetry: {} sent, {} acknowledged, {} failed", sent, acked, failed);
+        }
+    }
+}
@@ -0,0 +1,598 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageProperty;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Store-and-forward for telemetry that cannot reach the hub: sent while the device client is reconnecting,
+// cancelled on close or expired by the SDK. Records go to memory-mapped, append-only segments, sharded by
+// device, so an outage costs disk instead of heap. The records of a device are chained on disk through a
+// next position in their header, memory only holds the head and tail of each device. Once a device
+// is connected again its records are replayed in order, one in flight per device, within drain-rate per
+// device and global-drain-rate overall. New telemetry of a device with stored records is stored behind
+// them. A device's queue is dropped with its last acknowledgement and a segment is deleted when every record
+// in it was acknowledged. Written segments are forced to disk
+// every flush-interval by a thread of their own, the shard lock is only held to pick the dirty ones.
+@Component
+@Slf4j
+public class TelemetryOutbox {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    // shard count the directory was written with
+    private static final String LAYOUT_FILE = "shards";
+    // int length, written last so a torn append reads as the end of the segment, a state byte and the
+    // position of the next record of the same device
+    private static final int HEADER_SIZE = 13;
+    private static final int STATE_OFFSET = 4;
+    private static final int NEXT_OFFSET = 5;
+    private static final byte PENDING = 0;
+    private static final byte ACKNOWLEDGED = 1;
+    // no record, for next positions and empty queues
+    private static final long NONE = -1;
+
+    private final ConcurrentMap<String, DeviceQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicInteger drainBudget = new AtomicInteger();
+    private final boolean enabled;
+    private final Path directory;
+    private final Shard[] shards;
+    private final int segmentSize;
+    private final int maxSegmentsPerShard;
+    private final int drainPerTick;
+    private final int globalDrainPerTick;
+    private final Duration drainInterval;
+    private final long connectRetryNanos;
+    private final DeviceProvisioningService deviceProvisioningService;
+    private final ScheduledExecutorService scheduler;
+    private final ScheduledExecutorService flusher =
+            Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("outbox-flush-"));
+    private final Duration flushInterval;
+    private final Counter storedCounter;
+    private final Counter replayedCounter;
+    private final Counter rejectedCounter;
+
+    public TelemetryOutbox(DeviceProvisioningService deviceProvisioningService,
+                           MeterRegistry registry,
+                           @Qualifier("telemetryScheduler")
+                                   ScheduledExecutorService scheduler,
+                           @Value("${app.outbox.enabled:true}")
+                                   boolean enabled,
+                           @Value("${app.outbox.path:data/outbox}")
+                                   String directory,
+                           @Value("${app.outbox.shards:16}")
+                                   int shardCount,
+                           @Value("${app.outbox.segment-size:64MB}")
+                                   DataSize segmentSize,
+                           @Value("${app.outbox.max-segments-per-shard:16}")
+                                   int maxSegmentsPerShard,
+                           @Value("${app.outbox.drain-rate:50}")
+                                   int drainRate,
+                           @Value("${app.outbox.global-drain-rate:2000}")
+                                   int globalDrainRate,
+                           @Value("${app.outbox.drain-interval:100ms}")
+                                   Duration drainInterval,
+                           @Value("${app.outbox.flush-interval:100ms}")
+                                   Duration flushInterval,
+                           @Value("${app.outbox.connect-retry:30s}")
+                                   Duration connectRetry) {
+        this.deviceProvisioningService = deviceProvisioningService;
+        this.scheduler = scheduler;
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(this.directory.resolve("shard-" + i));
+        }
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE, segmentSize.toBytes());
+        this.maxSegmentsPerShard = maxSegmentsPerShard;
+        double ticksPerSecond = 1000.0 / drainInterval.toMillis();
+        this.drainPerTick = Math.max(1, (int) (drainRate / ticksPerSecond));
+        this.globalDrainPerTick = Math.max(1, (int) (globalDrainRate / ticksPerSecond));
+        this.drainInterval = drainInterval;
+        this.flushInterval = flushInterval;
+        this.connectRetryNanos = connectRetry.toNanos();
+        Gauge.builder("telemetry.outbox.pending", pending, AtomicLong::get)
+                .description("Messages stored in the outbox and not acknowledged yet")
+                .register(registry);
+        this.storedCounter = Counter.builder("telemetry.outbox.stored").register(registry);
+        this.replayedCounter = Counter.builder("telemetry.outbox.replayed").register(registry);
+        this.rejectedCounter = Counter.builder("telemetry.outbox.rejected")
+                .description("Messages lost because the outbox was full")
+                .register(registry);
+    }
+
+    @PostConstruct
+    public void load() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        checkLayout();
+        for (Shard shard : shards) {
+            shard.load();
+        }
+        log.info("Loaded {} stored messages of {} devices from {}", pending.get(), queues.size(), directory);
+        scheduler.scheduleAtFixedRate(this::drain, drainInterval.toMillis(), drainInterval.toMillis(), TimeUnit.MILLISECONDS);
+        flusher.scheduleWithFixedDelay(this::flush, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // live telemetry is stored instead of sent while the device is offline or still has stored records
+    public boolean shouldStore(String deviceId, DeviceConnection deviceConnection) {
+        if (!enabled) {
+            return false;
+        }
+        if (!deviceConnection.isConnected()) {
+            return true;
+        }
+        DeviceQueue queue = queues.get(deviceId);
+        return queue != null && queue.size() > 0;
+    }
+
+    // throws OutboxFullException when the shard of the device has no room left
+    public void store(String deviceId, String type, Message message) {
+        byte[] record = encode(deviceId, type, message);
+        Shard shard = shard(deviceId);
+        while (true) {
+            DeviceQueue queue = queues.computeIfAbsent(deviceId, id -> new DeviceQueue(id, shard));
+            // queue order has to follow file order, so the append and the link happen under the queue lock
+            synchronized (queue) {
+                if (queue.retired) {
+                    // emptied and dropped after the lookup
+                    continue;
+                }
+                // a loaded queue links within the shard it was read from
+                long position = queue.shard.append(record);
+                if (position == NONE) {
+                    if (queue.size == 0) {
+                        retire(queue);
+                    }
+                    rejectedCounter.increment();
+                    throw new OutboxFullException(deviceId);
+                }
+                queue.add(position);
+            }
+            pending.incrementAndGet();
+            storedCounter.increment();
+            return;
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        flusher.shutdown();
+        flush();
+    }
+
+    // records are looked up again in the shard their device hashes to, so a directory written with another
+    // shard count would split devices across shards; it is refused instead of replayed out of order
+    private void checkLayout() throws IOException {
+        Files.createDirectories(directory);
+        Path layout = directory.resolve(LAYOUT_FILE);
+        if (!Files.exists(layout)) {
+            Files.write(layout, Integer.toString(shards.length).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        int written = Integer.parseInt(new String(Files.readAllBytes(layout), StandardCharsets.US_ASCII).trim());
+        if (written != shards.length) {
+            throw new IllegalStateException("Outbox " + directory + " was written with " + written
+                    + " shards, app.outbox.shards is " + shards.length);
+        }
+    }
+
+    // msync can take a while on a busy disk, appends and acknowledgements go on meanwhile
+    private void flush() {
+        for (Shard shard : shards) {
+            for (MappedByteBuffer buffer : shard.takeDirty()) {
+                buffer.force();
+            }
+        }
+    }
+
+    private Shard shard(String deviceId) {
+        return shards[Math.floorMod(deviceId.hashCode(), shards.length)];
+    }
+
+    private void drain() {
+        drainBudget.set(globalDrainPerTick);
+        long now = System.nanoTime();
+        for (DeviceQueue queue : queues.values()) {
+            if (drainBudget.get() <= 0) {
+                return;
+            }
+            if (queue.size() == 0 || queue.retryAt - now > 0 || !queue.replaying.compareAndSet(false, true)) {
+                continue;
+            }
+            // connects devices that are not pooled any more, e.g. after a restart
+            deviceProvisioningService.getDeviceConnectionAsync(queue.deviceId).whenComplete((deviceConnection, e) -> {
+                if (e != null) {
+                    queue.retryAt = System.nanoTime() + connectRetryNanos;
+                    queue.replaying.set(false);
+                } else if (deviceConnection.isConnected()) {
+                    replayNext(queue, deviceConnection, drainPerTick);
+                } else {
+                    queue.replaying.set(false);
+                }
+            });
+        }
+    }
+
+    private void replayNext(DeviceQueue queue, DeviceConnection deviceConnection, int budget) {
+        long position;
+        synchronized (queue) {
+            position = queue.head;
+        }
+        if (position == NONE || budget <= 0 || drainBudget.getAndDecrement() <= 0) {
+            queue.replaying.set(false);
+            return;
+        }
+        Message message;
+        try {
+            message = decode(queue.shard.read(position));
+        } catch (IOException | RuntimeException e) {
+            log.error("Dropping unreadable outbox record of {}", queue.deviceId, e);
+            acknowledge(queue, position);
+            replayNext(queue, deviceConnection, budget);
+            return;
+        }
+        try {
+            deviceConnection.sendEventAsync(message, (status, context) -> {
+                if (status == IotHubStatusCode.OK || status == IotHubStatusCode.OK_EMPTY) {
+                    acknowledged(queue, position);
+                    replayNext(queue, deviceConnection, budget - 1);
+                } else {
+                    // left at the head of the queue and retried on a later tick
+                    log.debug("Replay for {} ended with {}", queue.deviceId, status);
+                    queue.replaying.set(false);
+                }
+            }, queue.deviceId);
+        } catch (RuntimeException e) {
+            log.debug("Replay for {} failed", queue.deviceId, e);
+            queue.replaying.set(false);
+        }
+    }
+
+    private void acknowledged(DeviceQueue queue, long position) {
+        acknowledge(queue, position);
+        replayedCounter.increment();
+    }
+
+    private void acknowledge(DeviceQueue queue, long position) {
+        synchronized (queue) {
+            if (queue.head != position) {
+                return;
+            }
+            queue.removeHead();
+            if (queue.size == 0) {
+                retire(queue);
+            }
+        }
+        pending.decrementAndGet();
+        queue.shard.acknowledge(position);
+    }
+
+    // under the queue lock, a later store maps a new queue
+    private void retire(DeviceQueue queue) {
+        queue.retired = true;
+        queues.remove(queue.deviceId, queue);
+    }
+
+    private static byte[] encode(String deviceId, String type, Message message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(deviceId);
+            out.writeUTF(type);
+            out.writeUTF(nullToEmpty(message.getMessageId()));
+            out.writeUTF(nullToEmpty(message.getContentType()));
+            out.writeUTF(nullToEmpty(message.getContentEncoding()));
+            MessageProperty[] properties = message.getProperties();
+            out.writeShort(properties.length);
+            for (MessageProperty property : properties) {
+                out.writeUTF(property.getName());
+                out.writeUTF(property.getValue());
+            }
+            byte[] body = message.getBytes();
+            out.writeInt(body.length);
+            out.write(body);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // ByteArrayOutputStream never does I/O
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Message decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        in.readUTF();
+        in.readUTF();
+        String messageId = in.readUTF();
+        String contentType = in.readUTF();
+        String contentEncoding = in.readUTF();
+        String[][] properties = new String[in.readShort()][];
+        for (int i = 0; i < properties.length; i++) {
+            properties[i] = new String[]{in.readUTF(), in.readUTF()};
+        }
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        Message message = new Message(body);
+        if (!messageId.isEmpty()) {
+            message.setMessageId(messageId);
+        }
+        if (!contentType.isEmpty()) {
+            message.setContentTypeFinal(contentType);
+        }
+        if (!contentEncoding.isEmpty()) {
+            message.setContentEncoding(contentEncoding);
+        }
+        for (String[] property : properties) {
+            message.setProperty(property[0], property[1]);
+        }
+        return message;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static long position(int segmentId, int offset) {
+        return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    // Oldest and newest record of a device as packed segment id and offset, the ones between are reached
+    // through the next positions on disk. Guarded by the queue monitor.
+    private static class DeviceQueue {
+        private final String deviceId;
+        private final Shard shard;
+        private final AtomicBoolean replaying = new AtomicBoolean();
+        private long head = NONE;
+        private long tail = NONE;
+        private int size;
+        // emptied and no longer mapped
+        private boolean retired;
+        private volatile long retryAt = System.nanoTime();
+
+        DeviceQueue(String deviceId, Shard shard) {
+            this.deviceId = deviceId;
+            this.shard = shard;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        void add(long position) {
+            if (tail == NONE) {
+                head = position;
+            } else {
+                shard.link(tail, position);
+            }
+            tail = position;
+            size++;
+        }
+
+        void removeHead() {
+            head = --size == 0 ? NONE : shard.next(head);
+            if (size == 0) {
+                tail = NONE;
+            }
+        }
+    }
+
+    private static class Segment {
+        private final int id;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int writeOffset;
+        // records not acknowledged yet
+        private int live;
+        private boolean dirty;
+
+        Segment(int id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private class Shard {
+        private final Path directory;
+        private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+        private Segment active;
+
+        Shard(Path directory) {
+            this.directory = directory;
+        }
+
+        synchronized void load() throws IOException {
+            Files.createDirectories(directory);
+            List<Path> files;
+            try (Stream<Path> list = Files.list(directory)) {
+                files = list.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(id, file, map(file, Math.max(segmentSize, (int) Files.size(file))));
+                segments.put(id, segment);
+                ByteBuffer buffer = segment.buffer;
+                int offset = 0;
+                while (offset + HEADER_SIZE <= buffer.capacity()) {
+                    int length = buffer.getInt(offset);
+                    if (length <= 0 || offset + HEADER_SIZE + length > buffer.capacity()) {
+                        break;
+                    }
+                    if (buffer.get(offset + STATE_OFFSET) == PENDING) {
+                        byte[] record = new byte[length];
+                        buffer.duplicate().position(offset + HEADER_SIZE).get(record);
+                        String deviceId = new DataInputStream(new ByteArrayInputStream(record)).readUTF();
+                        // relinks the chain too, an append may have been cut before its link was written
+                        queues.computeIfAbsent(deviceId, key -> new DeviceQueue(key, this))
+                                .add(position(id, offset));
+                        segment.live++;
+                        pending.incrementAndGet();
+                    }
+                    offset += HEADER_SIZE + length;
+                }
+                segment.writeOffset = offset;
+                if (segment.live == 0) {
+                    delete(segment);
+                }
+            }
+        }
+
+        // position of the record, or -1 when the shard is full
+        synchronized long append(byte[] record) {
+            int size = HEADER_SIZE + record.length;
+            if (size > segmentSize) {
+                throw new IllegalArgumentException("Message of " + record.length + " bytes does not fit an outbox segment");
+            }
+            try {
+                if (active == null || active.writeOffset + size > active.buffer.capacity()) {
+                    if (segments.size() >= maxSegmentsPerShard) {
+                        return -1;
+                    }
+                    int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+                    Path file = directory.resolve(String.format("%010d%s", id, SEGMENT_SUFFIX));
+                    Segment previous = active;
+                    active = new Segment(id, file, map(file, segmentSize));
+                    segments.put(id, active);
+                    if (previous != null && previous.live == 0) {
+                        delete(previous);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Could not create outbox segment in {}", directory, e);
+                return -1;
+            }
+            int offset = active.writeOffset;
+            MappedByteBuffer buffer = active.buffer;
+            buffer.put(offset + STATE_OFFSET, PENDING);
+            buffer.putLong(offset + NEXT_OFFSET, NONE);
+            buffer.duplicate().position(offset + HEADER_SIZE).put(record);
+            buffer.putInt(offset, record.length);
+            active.writeOffset += size;
+            active.live++;
+            active.dirty = true;
+            return position(active.id, offset);
+        }
+
+        synchronized byte[] read(long position) {
+            Segment segment = segments.get((int) (position >>> 32));
+            int offset = (int) position;
+            byte[] record = new byte[segment.buffer.getInt(offset)];
+            segment.buffer.duplicate().position(offset + HEADER_SIZE).get(record);
+            return record;
+        }
+
+        synchronized void link(long position, long next) {
+            Segment segment = segments.get((int) (position >>> 32));
+            segment.buffer.putLong((int) position + NEXT_OFFSET, next);
+            segment.dirty = true;
+        }
+
+        synchronized long next(long position) {
+            Segment segment = segments.get((int) (position >>> 32));
+            return segment.buffer.getLong((int) position + NEXT_OFFSET);
+        }
+
+        synchronized void acknowledge(long position) {
+            Segment segment = segments.get((int) (position >>> 32));
+            if (segment == null) {
+                return;
+            }
+            segment.buffer.put((int) position + STATE_OFFSET, ACKNOWLEDGED);
+            segment.dirty = true;
+            // the active segment is still being appended to, it goes once the next one is started
+            if (--segment.live == 0 && segment != active) {
+                delete(segment);
+            }
+        }
+
+        // the flag is cleared before the force, a write racing with it marks the segment again
+        synchronized List<MappedByteBuffer> takeDirty() {
+            List<MappedByteBuffer> dirty = new ArrayList<>();
+            for (Segment segment : segments.values()) {
+                if (segment.dirty) {
+                    dirty.add(segment.buffer);
+                    segment.dirty = false;
+                }
+            }
+            return dirty;
+        }
+
+        private void delete(Segment segment) {
+            segments.remove(segment.id);
+            try {
+                // the mapping itself is released when the buffer is collected
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                log.warn("Could not delete outbox segment {}", segment.path, e);
+            }
+        }
+
+        private MappedByteBuffer map(Path file, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+    }
+
+    public static class OutboxFullException extends RuntimeException {
+        OutboxFullException(String deviceId) {
+            super("Outbox is full for device " + deviceId);
+        }
+    }
+
+    public static class StoredForReplayException extends RuntimeException {
+        StoredForReplayException(String deviceId) {
+            super("Device " + deviceId + " is offline, message stored for replay");
+        }
+    }
+}
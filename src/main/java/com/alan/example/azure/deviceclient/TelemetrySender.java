@@ -0,0 +1,181 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.CompletableFuture;
+
+@Service
+@Slf4j
+public class TelemetrySender {
+
+    private final DeviceProvisioningService deviceProvisioningService;
+    private final InFlightLimiter inFlightLimiter;
+    private final TelemetryMetrics telemetryMetrics;
+    private final TelemetryOutbox telemetryOutbox;
+    private final EventCallback eventCallback;
+
+    public TelemetrySender(DeviceProvisioningService deviceProvisioningService,
+                           InFlightLimiter inFlightLimiter,
+                           TelemetryMetrics telemetryMetrics,
+                           TelemetryOutbox telemetryOutbox) {
+        this.deviceProvisioningService = deviceProvisioningService;
+        this.inFlightLimiter = inFlightLimiter;
+        this.telemetryMetrics = telemetryMetrics;
+        this.telemetryOutbox = telemetryOutbox;
+        this.eventCallback = new EventCallback(inFlightLimiter, telemetryMetrics, telemetryOutbox);
+    }
+
+    // completes once the message is handed to the device client, or with InFlightLimitExceededException
+    // when the in-flight limit rejects or drops it
+    public CompletableFuture<Void> send(String deviceId, String type, Message message) {
+        CompletableFuture<Void> accepted = new CompletableFuture<>();
+        try {
+            inFlightLimiter.submit(deviceId,
+                    () -> dispatch(deviceId, type, message, accepted, null),
+                    () -> reject(deviceId, type, accepted));
+        } catch (InFlightLimitExceededException e) {
+            reject(deviceId, type, accepted);
+        }
+        return accepted;
+    }
+
+    // like send, but never waits for an in-flight slot, for flushes running on the telemetry scheduler
+    public CompletableFuture<Void> trySend(String deviceId, String type, Message message) {
+        CompletableFuture<Void> accepted = new CompletableFuture<>();
+        try {
+            inFlightLimiter.trySubmit(deviceId,
+                    () -> dispatch(deviceId, type, message, accepted, null),
+                    () -> reject(deviceId, type, accepted));
+        } catch (InFlightLimitExceededException e) {
+            reject(deviceId, type, accepted);
+        }
+        return accepted;
+    }
+
+    // like send, but completes with the hub status once the IotHubEventCallback fired, or with
+    // StoredForReplayException when the message went to the outbox instead
+    public CompletableFuture<IotHubStatusCode> sendAndAwaitAck(String deviceId, String type, Message message) {
+        CompletableFuture<IotHubStatusCode> acknowledged = new CompletableFuture<>();
+        CompletableFuture<Void> accepted = new CompletableFuture<>();
+        try {
+            inFlightLimiter.submit(deviceId,
+                    () -> dispatch(deviceId, type, message, accepted, acknowledged),
+                    () -> reject(deviceId, type, accepted));
+        } catch (InFlightLimitExceededException e) {
+            reject(deviceId, type, accepted);
+        }
+        accepted.exceptionally(e -> {
+            acknowledged.completeExceptionally(e);
+            return null;
+        });
+        return acknowledged;
+    }
+
+    public void checkCapacity(String deviceId, String type) {
+        if (!inFlightLimiter.hasCapacity(deviceId)) {
+            telemetryMetrics.rejected(type);
+            throw new InFlightLimitExceededException(deviceId);
+        }
+    }
+
+    private void reject(String deviceId, String type, CompletableFuture<Void> accepted) {
+        telemetryMetrics.rejected(type);
+        accepted.completeExceptionally(new InFlightLimitExceededException(deviceId));
+    }
+
+    private void dispatch(String deviceId, String type, Message message, CompletableFuture<Void> accepted,
+                          CompletableFuture<IotHubStatusCode> acknowledged) {
+        deviceProvisioningService.getDeviceConnectionAsync(deviceId).whenComplete((deviceConnection, e) -> {
+            if (e != null) {
+                inFlightLimiter.release(deviceId);
+                accepted.completeExceptionally(e);
+                return;
+            }
+            if (telemetryOutbox.shouldStore(deviceId, deviceConnection)) {
+                inFlightLimiter.release(deviceId);
+                store(deviceId, type, message, accepted, acknowledged);
+                return;
+            }
+            try {
+                deviceConnection.sendEventAsync(message, eventCallback,
+                        new SendContext(deviceId, type, message, System.nanoTime(), acknowledged));
+                telemetryMetrics.sent(type);
+                accepted.complete(null);
+            } catch (RuntimeException sendException) {
+                inFlightLimiter.release(deviceId);
+                accepted.completeExceptionally(sendException);
+            }
+        });
+    }
+
+    private void store(String deviceId, String type, Message message, CompletableFuture<Void> accepted,
+                       CompletableFuture<IotHubStatusCode> acknowledged) {
+        try {
+            telemetryOutbox.store(deviceId, type, message);
+        } catch (RuntimeException e) {
+            accepted.completeExceptionally(e);
+            return;
+        }
+        accepted.complete(null);
+        if (acknowledged != null) {
+            acknowledged.completeExceptionally(new TelemetryOutbox.StoredForReplayException(deviceId));
+        }
+    }
+
+    static class SendContext {
+        private final String deviceId;
+        private final String type;
+        // kept so a message the SDK gives up on can still go to the outbox
+        private final Message message;
+        private final long sentAt;
+        private final CompletableFuture<IotHubStatusCode> acknowledged;
+
+        SendContext(String deviceId, String type, Message message, long sentAt,
+                    CompletableFuture<IotHubStatusCode> acknowledged) {
+            this.deviceId = deviceId;
+            this.type = type;
+            this.message = message;
+            this.sentAt = sentAt;
+            this.acknowledged = acknowledged;
+        }
+
+        @Override
+        public String toString() {
+            return deviceId;
+        }
+    }
+
+    protected static class EventCallback implements IotHubEventCallback {
+        private final InFlightLimiter inFlightLimiter;
+        private final TelemetryMetrics telemetryMetrics;
+        private final TelemetryOutbox telemetryOutbox;
+
+        EventCallback(InFlightLimiter inFlightLimiter, TelemetryMetrics telemetryMetrics, TelemetryOutbox telemetryOutbox) {
+            this.inFlightLimiter = inFlightLimiter;
+            this.telemetryMetrics = telemetryMetrics;
+            this.telemetryOutbox = telemetryOutbox;
+        }
+
+        public void execute(IotHubStatusCode status, Object context) {
+            SendContext sendContext = (SendContext) context;
+            inFlightLimiter.release(sendContext.deviceId);
+            telemetryMetrics.acknowledged(sendContext.deviceId, sendContext.type, status,
+                    System.nanoTime() - sendContext.sentAt);
+            if ((status == IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE || status == IotHubStatusCode.MESSAGE_EXPIRED)
+                    && telemetryOutbox.isEnabled()) {
+                try {
+                    telemetryOutbox.store(sendContext.deviceId, sendContext.type, sendContext.message);
+                } catch (RuntimeException e) {
+                    log.warn("Message of {} lost with status {}", sendContext.deviceId, status, e);
+                }
+            }
+            if (sendContext.acknowledged != null) {
+                sendContext.acknowledged.complete(status);
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.alan.example.azure.deviceclient;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.CONFLICT)
+public class WarmUpInProgressException extends RuntimeException {
+
+    public WarmUpInProgressException(long remaining) {
+        super("A warm-up is still running with " + remaining + " devices left, try again once it is done");
+    }
+}
@@ -0,0 +1,184 @@
+package com.alan.example.azure.deviceclient;
+
+import lombok.Builder;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Service
+@Slf4j
+public class WarmUpService implements ApplicationRunner {
+
+    private final DeviceProvisioningService deviceProvisioningService;
+    private final List<String> startupDeviceIds;
+    private final boolean blockStartup;
+    private final int concurrency;
+    private final long intervalNanos;
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("warmup-"));
+    private volatile WarmUpJob currentJob;
+
+    public WarmUpService(DeviceProvisioningService deviceProvisioningService,
+                         @Value("${app.warmup.device-ids:}")
+                                 List<String> startupDeviceIds,
+                         @Value("${app.warmup.block-startup:true}")
+                                 boolean blockStartup,
+                         @Value("${app.warmup.concurrency:32}")
+                                 int concurrency,
+                         @Value("${app.warmup.rate-per-second:50}")
+                                 int ratePerSecond) {
+        if (concurrency <= 0 || ratePerSecond <= 0) {
+            throw new IllegalArgumentException("app.warmup.concurrency and app.warmup.rate-per-second must be positive, got "
+                    + concurrency + " and " + ratePerSecond);
+        }
+        this.deviceProvisioningService = deviceProvisioningService;
+        this.startupDeviceIds = startupDeviceIds;
+        this.blockStartup = blockStartup;
+        this.concurrency = concurrency;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+    }
+
+    // Runs before the application reports itself ready, so a blocking warm-up keeps the node out of the balancer
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        if (startupDeviceIds.isEmpty()) {
+            return;
+        }
+        WarmUpJob job = start(startupDeviceIds);
+        if (blockStartup) {
+            job.done.await();
+            WarmUpReport report = job.report();
+            log.info("Warm-up finished: {} ok, {} failed in {} ms",
+                    report.getSucceeded(), report.getFailed(), report.getElapsedMillis());
+        }
+    }
+
+    // one job at a time, the caller polls the report and posts its list again once the running one is done
+    public synchronized WarmUpReport warmUp(List<String> deviceIds) {
+        if (currentJob != null && currentJob.done.getCount() > 0) {
+            throw new WarmUpInProgressException(currentJob.done.getCount());
+        }
+        return start(deviceIds).report();
+    }
+
+    public WarmUpReport report() {
+        WarmUpJob job = currentJob;
+        return job == null ? WarmUpReport.builder().build() : job.report();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdownNow();
+    }
+
+    private synchronized WarmUpJob start(List<String> deviceIds) {
+        WarmUpJob job = new WarmUpJob(deviceIds.size());
+        currentJob = job;
+        log.info("Warming up {} devices, concurrency {}", deviceIds.size(), concurrency);
+        dispatcher.execute(() -> dispatch(job, deviceIds));
+        return job;
+    }
+
+    private void dispatch(WarmUpJob job, List<String> deviceIds) {
+        Semaphore inFlight = new Semaphore(concurrency);
+        long nextSlot = System.nanoTime();
+        try {
+            for (String deviceId : deviceIds) {
+                // fixed pacing so DPS sees a steady rate instead of bursts
+                long wait = nextSlot - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                nextSlot = Math.max(nextSlot, System.nanoTime()) + intervalNanos;
+                inFlight.acquire();
+                long start = System.nanoTime();
+                deviceProvisioningService.getDeviceConnectionAsync(deviceId).whenComplete((deviceConnection, e) -> {
+                    inFlight.release();
+                    job.complete(deviceId, e, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Warm-up interrupted after {} devices", job.completed.get());
+            while (job.done.getCount() > 0) {
+                job.done.countDown();
+            }
+        }
+    }
+
+    static class WarmUpJob {
+        private final int total;
+        private final long startedAt = System.currentTimeMillis();
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final Map<String, DeviceResult> results = new ConcurrentHashMap<>();
+        private final CountDownLatch done;
+        private volatile long finishedAt;
+
+        WarmUpJob(int total) {
+            this.total = total;
+            this.done = new CountDownLatch(total);
+        }
+
+        void complete(String deviceId, Throwable e, long millis) {
+            if (e != null) {
+                failed.incrementAndGet();
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                results.put(deviceId, new DeviceResult(false, millis, cause.toString()));
+            } else {
+                results.put(deviceId, new DeviceResult(true, millis, null));
+            }
+            if (completed.incrementAndGet() == total) {
+                finishedAt = System.currentTimeMillis();
+            }
+            done.countDown();
+        }
+
+        WarmUpReport report() {
+            long end = finishedAt > 0 ? finishedAt : System.currentTimeMillis();
+            return WarmUpReport.builder()
+                    .total(total)
+                    .completed(completed.get())
+                    .succeeded(completed.get() - failed.get())
+                    .failed(failed.get())
+                    .running(done.getCount() > 0)
+                    .elapsedMillis(end - startedAt)
+                    .results(results)
+                    .build();
+        }
+    }
+
+    @Data
+    @Builder
+    public static class WarmUpReport {
+        private int total;
+        private int completed;
+        private int succeeded;
+        private int failed;
+        private boolean running;
+        private long elapsedMillis;
+        private Map<String, DeviceResult> results;
+    }
+
+    @Data
+    public static class DeviceResult {
+        private final boolean connected;
+        private final long millis;
+        private final String error;
+    }
+}
@@ -0,0 +1,134 @@
+package com.alan.example.azure.deviceclient;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageCallback;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class C2dDispatcherTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger handled = new AtomicInteger();
+    private C2dDispatcher dispatcher;
+
+    @AfterEach
+    void shutdown() {
+        release.countDown();
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    void redeliveryOfASlowMessageGetsTheResultOfItsFirstRun() throws Exception {
+        dispatcher = dispatcher(new SlowHandler(), Duration.ofMillis(50));
+        MessageCallback callback = dispatcher.callbackFor("dev-1");
+
+        assertEquals(IotHubMessageResult.ABANDON, callback.execute(message("slow", "1"), null));
+        // redelivered while the handler still runs: not handed to it a second time
+        assertEquals(IotHubMessageResult.ABANDON, callback.execute(message("slow", "1"), null));
+        release.countDown();
+        assertEquals(IotHubMessageResult.COMPLETE, dispatcher.dispatch("dev-1", message("slow", "1"))
+                .get(5, TimeUnit.SECONDS));
+        assertEquals(IotHubMessageResult.COMPLETE, callback.execute(message("slow", "1"), null));
+        assertEquals(1, handled.get());
+    }
+
+    @Test
+    void runsTheMessagesOfADeviceInArrivalOrder() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        dispatcher = dispatcher(handler, Duration.ofSeconds(5));
+        // twice, the second round goes to lanes made again after the first ones ran empty
+        for (int round = 0; round < 2; round++) {
+            List<CompletableFuture<IotHubMessageResult>> results = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                for (String deviceId : Arrays.asList("dev-1", "dev-2", "dev-3")) {
+                    results.add(dispatcher.dispatch(deviceId, message("record", round + "-" + i)));
+                }
+            }
+            for (CompletableFuture<IotHubMessageResult> result : results) {
+                assertEquals(IotHubMessageResult.COMPLETE, result.get(5, TimeUnit.SECONDS));
+            }
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 20; i++) {
+                expected.add(round + "-" + i);
+            }
+        }
+        for (String deviceId : Arrays.asList("dev-1", "dev-2", "dev-3")) {
+            assertEquals(expected, handler.handled(deviceId));
+        }
+    }
+
+    private C2dDispatcher dispatcher(C2dHandler handler, Duration ackTimeout) {
+        MessageEncoder messageEncoder = new MessageEncoder(new ObjectMapper(), Collections.emptySet(),
+                MessageEncoder.PayloadFormat.CBOR, MessageEncoder.Compression.NONE, DataSize.ofKilobytes(1), 1,
+                DataSize.ofMegabytes(1));
+        return new C2dDispatcher(Collections.singletonList(handler), messageEncoder, new SimpleMeterRegistry(),
+                4, 32, 1000, ackTimeout, IotHubMessageResult.ABANDON, Duration.ofMinutes(10));
+    }
+
+    private static Message message(String type, String messageId) {
+        Message message = new Message("command-" + messageId);
+        message.setMessageId(messageId);
+        message.setProperty(MessageEncoder.TYPE_PROPERTY, type);
+        return message;
+    }
+
+    // records the messages of each device in the order the handler saw them
+    private static class RecordingHandler implements C2dHandler {
+        private final Map<String, List<String>> handled = new ConcurrentHashMap<>();
+
+        @Override
+        public String type() {
+            return "record";
+        }
+
+        @Override
+        public IotHubMessageResult handle(String deviceId, Message message) throws Exception {
+            handled.computeIfAbsent(deviceId, id -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(message.getMessageId());
+            // long enough for the lanes of the other devices to interleave
+            Thread.sleep(1);
+            return IotHubMessageResult.COMPLETE;
+        }
+
+        List<String> handled(String deviceId) {
+            return new ArrayList<>(handled.get(deviceId));
+        }
+    }
+
+    private class SlowHandler implements C2dHandler {
+        @Override
+        public String type() {
+            return "slow";
+        }
+
+        @Override
+        public IotHubMessageResult handle(String deviceId, Message message) throws Exception {
+            handled.incrementAndGet();
+            release.await(5, TimeUnit.SECONDS);
+            return IotHubMessageResult.COMPLETE;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class DeviceProvisioningServiceTest {
+
+    private static final int CALLERS = 8;
+
+    private final ExecutorService deviceExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+    private final CountingTransport transport = new CountingTransport();
+
+    @AfterEach
+    void shutdown() {
+        deviceExecutor.shutdownNow();
+        callers.shutdownNow();
+    }
+
+    @Test
+    void concurrentCallersForOneDeviceShareOneRegistration() throws Exception {
+        DeviceProvisioningService deviceProvisioningService = deviceProvisioningService();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<CompletableFuture<DeviceConnection>>> calls = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            calls.add(callers.submit(() -> {
+                start.await();
+                return deviceProvisioningService.getDeviceConnectionAsync("dev-1");
+            }));
+        }
+        start.countDown();
+        List<CompletableFuture<DeviceConnection>> connections = new ArrayList<>();
+        for (Future<CompletableFuture<DeviceConnection>> call : calls) {
+            connections.add(call.get(5, TimeUnit.SECONDS));
+        }
+        // DPS answers only once every caller asked
+        transport.registration.complete(new ProvisioningResultStore.Assignment("hub-1", "dev-1"));
+
+        for (CompletableFuture<DeviceConnection> connection : connections) {
+            assertSame(transport.connection, connection.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, transport.registered.get());
+        assertEquals(1, transport.connected.get());
+    }
+
+    private DeviceProvisioningService deviceProvisioningService() {
+        ConnectionManager connectionManager = new ConnectionManager(new SimpleMeterRegistry(), Duration.ofSeconds(1),
+                Duration.ofSeconds(60), Duration.ofMinutes(15), 50, Duration.ofSeconds(5), Duration.ofHours(1), 0.25);
+        return new DeviceProvisioningService(100, Duration.ofHours(1), deviceExecutor,
+                new ProvisioningResultStore("unused", false), transport, connectionManager);
+    }
+
+    private static class CountingTransport implements DeviceTransport {
+        private final AtomicInteger registered = new AtomicInteger();
+        private final AtomicInteger connected = new AtomicInteger();
+        private final DeviceConnection connection = new IdleConnection();
+        private final CompletableFuture<ProvisioningResultStore.Assignment> registration = new CompletableFuture<>();
+
+        @Override
+        public CompletableFuture<ProvisioningResultStore.Assignment> register(String registrationId) {
+            registered.incrementAndGet();
+            return registration;
+        }
+
+        @Override
+        public CompletableFuture<DeviceConnection> connect(String registrationId, ProvisioningResultStore.Assignment assignment) {
+            connected.incrementAndGet();
+            return CompletableFuture.completedFuture(connection);
+        }
+    }
+
+    private static class IdleConnection implements DeviceConnection {
+        @Override
+        public void sendEventAsync(Message message, IotHubEventCallback callback, Object callbackContext) {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InFlightLimiterTest {
+
+    private static final Duration NEVER = Duration.ofHours(1);
+
+    private final ExecutorService deviceExecutor = Executors.newSingleThreadExecutor();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<String> dispatched = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> dropped = Collections.synchronizedList(new ArrayList<>());
+    private TelemetryOutbox outbox;
+
+    @AfterEach
+    void shutdown() {
+        if (outbox != null) {
+            outbox.close();
+        }
+        deviceExecutor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void rejectPolicyHandsOutPerDeviceAndGlobalSlots() {
+        InFlightLimiter limiter = new InFlightLimiter(3, 2, InFlightLimiter.Policy.REJECT, NEVER, 0);
+        submit(limiter, "dev-1", "1");
+        submit(limiter, "dev-1", "2");
+        assertThrows(InFlightLimitExceededException.class, () -> submit(limiter, "dev-1", "3"));
+        submit(limiter, "dev-2", "4");
+        // the global limit is reached with a slot of dev-2 still free
+        assertThrows(InFlightLimitExceededException.class, () -> submit(limiter, "dev-2", "5"));
+        assertFalse(limiter.hasCapacity("dev-2"));
+        assertEquals(3, limiter.inFlight());
+
+        limiter.release("dev-1");
+        submit(limiter, "dev-2", "6");
+        assertEquals(Arrays.asList("1", "2", "4", "6"), dispatched);
+        assertEquals(3, limiter.inFlight());
+    }
+
+    @Test
+    void blockPolicyWaitsForARelease() throws Exception {
+        InFlightLimiter limiter = new InFlightLimiter(10, 1, InFlightLimiter.Policy.BLOCK, Duration.ofSeconds(5), 0);
+        submit(limiter, "dev-1", "1");
+        Future<?> waiting = deviceExecutor.submit(() -> submit(limiter, "dev-1", "2"));
+        Thread.sleep(50);
+        assertEquals(Collections.singletonList("1"), dispatched);
+
+        limiter.release("dev-1");
+        waiting.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("1", "2"), dispatched);
+        assertEquals(1, limiter.inFlight());
+    }
+
+    @Test
+    void blockPolicyGivesBackNothingItDidNotTake() {
+        InFlightLimiter limiter = new InFlightLimiter(10, 1, InFlightLimiter.Policy.BLOCK, Duration.ofMillis(50), 0);
+        submit(limiter, "dev-1", "1");
+        assertThrows(InFlightLimitExceededException.class, () -> submit(limiter, "dev-1", "2"));
+        // the scheduler path rejects at once instead of waiting
+        long start = System.nanoTime();
+        assertThrows(InFlightLimitExceededException.class,
+                () -> limiter.trySubmit("dev-1", () -> dispatched.add("3"), () -> dropped.add("3")));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(1, limiter.inFlight());
+
+        limiter.release("dev-1");
+        assertEquals(0, limiter.inFlight());
+        submit(limiter, "dev-1", "4");
+        assertEquals(Arrays.asList("1", "4"), dispatched);
+    }
+
+    @Test
+    void dropOldestQueuesBehindTheSlotsAndDropsTheOldestQueued() {
+        InFlightLimiter limiter = new InFlightLimiter(10, 1, InFlightLimiter.Policy.DROP_OLDEST, NEVER, 2);
+        for (String id : Arrays.asList("1", "2", "3", "4")) {
+            submit(limiter, "dev-1", id);
+        }
+        assertEquals(Collections.singletonList("1"), dispatched);
+        assertEquals(Collections.singletonList("2"), dropped);
+        assertEquals(1, limiter.dropped());
+        // a drop holds no slot, the queued sends follow one release each
+        limiter.release("dev-1");
+        assertEquals(Arrays.asList("1", "3"), dispatched);
+        limiter.release("dev-1");
+        assertEquals(Arrays.asList("1", "3", "4"), dispatched);
+        limiter.release("dev-1");
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    void provisioningFailureGivesTheSlotBack() throws Exception {
+        InFlightLimiter limiter = new InFlightLimiter(10, 1, InFlightLimiter.Policy.REJECT, NEVER, 0);
+        TelemetrySender telemetrySender = sender(limiter);
+
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<Void> accepted = telemetrySender.send("dev-1", "temperature", new Message("reading"));
+            ExecutionException e = assertThrows(ExecutionException.class, () -> accepted.get(5, TimeUnit.SECONDS));
+            // failed by provisioning, not by a slot still held from the attempt before
+            assertFalse(e.getCause() instanceof InFlightLimitExceededException);
+            assertEquals(0, limiter.inFlight());
+        }
+    }
+
+    private void submit(InFlightLimiter limiter, String deviceId, String id) {
+        limiter.submit(deviceId, () -> dispatched.add(id), () -> dropped.add(id));
+    }
+
+    private TelemetrySender sender(InFlightLimiter limiter) {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ConnectionManager connectionManager = new ConnectionManager(registry, Duration.ofSeconds(1),
+                Duration.ofSeconds(60), Duration.ofMinutes(15), 50, Duration.ofSeconds(5), Duration.ofHours(1), 0.25);
+        DeviceProvisioningService deviceProvisioningService = new DeviceProvisioningService(100, Duration.ofHours(1),
+                deviceExecutor, new ProvisioningResultStore("unused", false), new UnreachableTransport(),
+                connectionManager);
+        outbox = new TelemetryOutbox(deviceProvisioningService, registry, scheduler, false, "unused", 1,
+                DataSize.ofKilobytes(64), 16, 1000, 1000, NEVER, NEVER, NEVER);
+        TelemetryMetrics telemetryMetrics = new TelemetryMetrics(registry, limiter, deviceProvisioningService,
+                scheduler, 100, 1000, NEVER);
+        return new TelemetrySender(deviceProvisioningService, limiter, telemetryMetrics, outbox);
+    }
+
+    // DPS is down
+    private static class UnreachableTransport implements DeviceTransport {
+        @Override
+        public CompletableFuture<ProvisioningResultStore.Assignment> register(String registrationId) {
+            return CompletableFuture.failedFuture(new IllegalStateException("DPS unreachable"));
+        }
+
+        @Override
+        public CompletableFuture<DeviceConnection> connect(String registrationId, ProvisioningResultStore.Assignment assignment) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Hub unreachable"));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.alan.example.azure.deviceclient;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.azure.sdk.iot.device.Message;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MessageEncoderTest {
+
+    @Test
+    void gzipBodiesReadBackWithGzipInputStream() throws Exception {
+        MessageEncoder encoder = encoder(MessageEncoder.Compression.GZIP, DataSize.ofMegabytes(1));
+        MyMessage reading = reading(4096);
+        Message message = encoder.toDeviceMessage(reading);
+
+        assertEquals("gzip", message.getContentEncoding());
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(message.getBytes()))) {
+            assertArrayEquals(encoder.encode(reading, MessageEncoder.PayloadFormat.JSON), in.readAllBytes());
+        }
+    }
+
+    @Test
+    void deflateBodiesReadBackWithInflaterInputStream() throws Exception {
+        MessageEncoder encoder = encoder(MessageEncoder.Compression.DEFLATE, DataSize.ofMegabytes(1));
+        MyMessage reading = reading(4096);
+        Message message = encoder.toDeviceMessage(reading);
+
+        assertEquals("deflate", message.getContentEncoding());
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(message.getBytes()))) {
+            assertArrayEquals(encoder.encode(reading, MessageEncoder.PayloadFormat.JSON), in.readAllBytes());
+        }
+    }
+
+    @Test
+    void framesEncodedElementsIntoAnArray() throws Exception {
+        MessageEncoder encoder = encoder(MessageEncoder.Compression.NONE, DataSize.ofMegabytes(1));
+        List<MyMessage> readings = Arrays.asList(reading(16), reading(32), reading(64));
+        List<byte[]> elements = new ArrayList<>();
+        for (MyMessage reading : readings) {
+            elements.add(encoder.encodeElement(reading));
+        }
+        Message message = encoder.toDeviceMessage("telemetry", elements);
+
+        // the same bytes as writing the list in one go
+        assertEquals(new ObjectMapper().writeValueAsString(readings), new String(message.getBytes(), StandardCharsets.UTF_8));
+        assertEquals("[]", new String(encoder.toDeviceMessage("telemetry", Collections.emptyList()).getBytes(),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void decompressesReceivedBodies() throws Exception {
+        MessageEncoder encoder = encoder(MessageEncoder.Compression.NONE, DataSize.ofMegabytes(1));
+        byte[] body = new byte[10_000];
+        Arrays.fill(body, (byte) 'x');
+        Message received = new Message(gzip(body));
+        received.setMessageId("42");
+        received.setProperty(MessageEncoder.Compression.CONTENT_ENCODING_PROPERTY, "gzip");
+        received.setProperty(MessageEncoder.TYPE_PROPERTY, "command");
+
+        Message message = encoder.decompressed(received);
+        assertArrayEquals(body, message.getBytes());
+        assertEquals("42", message.getMessageId());
+        assertEquals("command", message.getProperty(MessageEncoder.TYPE_PROPERTY));
+    }
+
+    @Test
+    void refusesBodiesInflatingPastTheLimit() throws Exception {
+        MessageEncoder encoder = encoder(MessageEncoder.Compression.NONE, DataSize.ofKilobytes(64));
+        // about 100 bytes on the wire
+        Message received = new Message(gzip(new byte[65 * 1024]));
+        received.setProperty(MessageEncoder.Compression.CONTENT_ENCODING_PROPERTY, "gzip");
+
+        assertThrows(IOException.class, () -> encoder.decompressed(received));
+    }
+
+    private static MessageEncoder encoder(MessageEncoder.Compression compression, DataSize maxInflatedSize) {
+        return new MessageEncoder(new ObjectMapper(), Collections.emptySet(), MessageEncoder.PayloadFormat.CBOR,
+                compression, DataSize.ofKilobytes(1), 1, maxInflatedSize);
+    }
+
+    // compressible but not all the same byte
+    private static MyMessage reading(int size) {
+        StringBuilder data = new StringBuilder(size);
+        for (int i = 0; data.length() < size; i++) {
+            data.append("reading-").append(i % 100).append(' ');
+        }
+        return MyMessage.builder()
+                .data(data.toString())
+                .id("1")
+                .deviceId("dev-1")
+                .type("telemetry")
+                .ts(0L)
+                .build();
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(body);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,56 @@
+package com.alan.example.azure.deviceclient;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class ProvisioningResultStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reloadsAssignmentsAndTombstones() throws Exception {
+        Path file = dir.resolve("results.bin");
+        ProvisioningResultStore store = new ProvisioningResultStore(file.toString(), true);
+        store.load();
+        store.save("dev-1", "hub-a.azure-devices.net", "dev-1");
+        store.save("dev-2", "hub-a.azure-devices.net", "dev-2");
+        store.save("dev-1", "hub-b.azure-devices.net", "dev-1");
+        store.remove("dev-2");
+        store.close();
+
+        ProvisioningResultStore reloaded = new ProvisioningResultStore(file.toString(), true);
+        reloaded.load();
+        assertEquals("hub-b.azure-devices.net", reloaded.find("dev-1").get().getIotHubUri());
+        assertFalse(reloaded.find("dev-2").isPresent());
+        reloaded.close();
+    }
+
+    @Test
+    void dropsTruncatedTailRecord() throws Exception {
+        Path file = dir.resolve("results.bin");
+        ProvisioningResultStore store = new ProvisioningResultStore(file.toString(), true);
+        store.load();
+        store.save("dev-1", "hub-a.azure-devices.net", "dev-1");
+        store.close();
+        Files.write(file, new byte[]{0, 5, 'd'}, StandardOpenOption.APPEND);
+
+        ProvisioningResultStore reloaded = new ProvisioningResultStore(file.toString(), true);
+        reloaded.load();
+        reloaded.save("dev-3", "hub-c.azure-devices.net", "dev-3");
+        reloaded.close();
+
+        ProvisioningResultStore again = new ProvisioningResultStore(file.toString(), true);
+        again.load();
+        assertEquals("hub-a.azure-devices.net", again.find("dev-1").get().getIotHubUri());
+        assertEquals("hub-c.azure-devices.net", again.find("dev-3").get().getIotHubUri());
+        again.close();
+    }
+}
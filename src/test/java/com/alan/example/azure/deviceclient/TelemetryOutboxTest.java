@@ -0,0 +1,212 @@
+package com.alan.example.azure.deviceclient;
+
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TelemetryOutboxTest {
+
+    private static final Duration NEVER = Duration.ofHours(1);
+
+    @TempDir
+    Path dir;
+
+    private final ExecutorService deviceExecutor = Executors.newSingleThreadExecutor();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final RecordingConnection connection = new RecordingConnection();
+
+    @AfterEach
+    void shutdown() {
+        deviceExecutor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void replaysStoredMessagesInOrderAfterReload() throws Exception {
+        TelemetryOutbox outbox = outbox(DataSize.ofKilobytes(64), NEVER);
+        store(outbox, "dev-1", "1", "2", "3");
+        store(outbox, "dev-2", "4", "5");
+        outbox.close();
+
+        TelemetryOutbox reloaded = outbox(DataSize.ofKilobytes(64), Duration.ofMillis(10));
+        awaitReplayed(5);
+        assertEquals(Arrays.asList("1", "2", "3"), connection.replayed("dev-1"));
+        assertEquals(Arrays.asList("4", "5"), connection.replayed("dev-2"));
+        reloaded.close();
+    }
+
+    @Test
+    void ignoresTornAppendAtTheTail() throws Exception {
+        TelemetryOutbox outbox = outbox(DataSize.ofKilobytes(64), NEVER);
+        store(outbox, "dev-1", "1", "2");
+        outbox.close();
+        // a crash before the length was written leaves state, next and body behind a zero length
+        Path segment = segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 0, 0, 1, 2, 3, 4, 5, 6, 7, 8, 'd', 'e', 'v'}),
+                    endOfRecords(segment));
+        }
+
+        TelemetryOutbox reloaded = outbox(DataSize.ofKilobytes(64), NEVER);
+        store(reloaded, "dev-1", "3");
+        reloaded.close();
+
+        TelemetryOutbox again = outbox(DataSize.ofKilobytes(64), Duration.ofMillis(10));
+        awaitReplayed(3);
+        assertEquals(Arrays.asList("1", "2", "3"), connection.replayed("dev-1"));
+        again.close();
+    }
+
+    @Test
+    void deletesSegmentsOnceAcknowledged() throws Exception {
+        // a few records per segment, so ten messages take three of them
+        TelemetryOutbox outbox = outbox(DataSize.ofBytes(256), NEVER);
+        store(outbox, "dev-1", "1", "2", "3", "4", "5", "6", "7", "8", "9", "10");
+        outbox.close();
+        assertEquals(3, segments().size());
+
+        TelemetryOutbox reloaded = outbox(DataSize.ofBytes(256), Duration.ofMillis(10));
+        awaitReplayed(10);
+        // nothing is appended after a load, so no segment is kept as the active one either, the last
+        // acknowledgement may still be on its way after the send was recorded
+        await(() -> segments().isEmpty());
+        assertEquals(0, segments().size());
+        reloaded.close();
+    }
+
+    @Test
+    void refusesADirectoryWrittenWithAnotherShardCount() throws Exception {
+        TelemetryOutbox outbox = outbox(DataSize.ofKilobytes(64), NEVER);
+        store(outbox, "dev-1", "1");
+        outbox.close();
+
+        assertThrows(IllegalStateException.class, () -> outbox(2, DataSize.ofKilobytes(64), NEVER));
+    }
+
+    private TelemetryOutbox outbox(DataSize segmentSize, Duration drainInterval) throws IOException {
+        return outbox(1, segmentSize, drainInterval);
+    }
+
+    private TelemetryOutbox outbox(int shards, DataSize segmentSize, Duration drainInterval) throws IOException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ConnectionManager connectionManager = new ConnectionManager(registry, Duration.ofSeconds(1),
+                Duration.ofSeconds(60), Duration.ofMinutes(15), 50, Duration.ofSeconds(5), Duration.ofHours(1), 0.25);
+        DeviceProvisioningService deviceProvisioningService = new DeviceProvisioningService(100, Duration.ofHours(1),
+                deviceExecutor, new ProvisioningResultStore("unused", false), new SeededOnlyTransport(), connectionManager);
+        for (String deviceId : Arrays.asList("dev-1", "dev-2")) {
+            deviceProvisioningService.deviceClientPool.put(deviceId, CompletableFuture.completedFuture(connection));
+        }
+        TelemetryOutbox outbox = new TelemetryOutbox(deviceProvisioningService, registry, scheduler, true,
+                dir.toString(), shards, segmentSize, 16, 1000, 1000, drainInterval, Duration.ofSeconds(1), NEVER);
+        outbox.load();
+        return outbox;
+    }
+
+    private static void store(TelemetryOutbox outbox, String deviceId, String... messageIds) {
+        for (String messageId : messageIds) {
+            Message message = new Message("reading-" + messageId);
+            message.setMessageId(messageId);
+            outbox.store(deviceId, "temperature", message);
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir.resolve("shard-0"))) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    // records end with their body, which is never zero here
+    private static long endOfRecords(Path segment) throws IOException {
+        byte[] bytes = Files.readAllBytes(segment);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    private void awaitReplayed(int count) throws Exception {
+        await(() -> connection.count() >= count);
+        assertEquals(count, connection.count());
+    }
+
+    private static void await(Callable<Boolean> done) throws Exception {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (!done.call() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    // the outbox only reaches devices through the seeded pool
+    private static class SeededOnlyTransport implements DeviceTransport {
+        @Override
+        public CompletableFuture<ProvisioningResultStore.Assignment> register(String registrationId) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Not seeded: " + registrationId));
+        }
+
+        @Override
+        public CompletableFuture<DeviceConnection> connect(String registrationId, ProvisioningResultStore.Assignment assignment) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Not seeded: " + registrationId));
+        }
+    }
+
+    private static class RecordingConnection implements DeviceConnection {
+        private final List<String[]> sent = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void sendEventAsync(Message message, IotHubEventCallback callback, Object callbackContext) {
+            sent.add(new String[]{(String) callbackContext, message.getMessageId()});
+            callback.execute(IotHubStatusCode.OK_EMPTY, callbackContext);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        int count() {
+            return sent.size();
+        }
+
+        List<String> replayed(String deviceId) {
+            synchronized (sent) {
+                return sent.stream()
+                        .filter(message -> message[0].equals(deviceId))
+                        .map(message -> message[1])
+                        .collect(Collectors.toList());
+            }
+        }
+    }
+}